@@ -2,7 +2,10 @@ package com.github.borz7zy.telegramm;
 
 import android.app.Application;
 
+import com.github.borz7zy.telegramm.background.AsyncTask;
+import com.github.borz7zy.telegramm.core.accounts.AccountManager;
 import com.github.borz7zy.telegramm.utils.Logger;
+import com.github.borz7zy.telegramm.utils.StartupTrace;
 
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
@@ -10,22 +13,58 @@ import org.drinkless.tdlib.TdApi;
 public class App extends Application {
     private static App INSTANCE = null;
 
+    // Each account gets its own ordered TDLib dispatch lane, so a slow handler stalls only its own account.
+    // Off unless tdlib.shardedDispatch is set in gradle.properties
+    private static final int TDLIB_DISPATCH_THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Theme generation, TDLib log setup and account warm-up run off the main thread
+    private static final boolean DEFER_NON_CRITICAL_INIT = true;
+
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTrace.begin("App.onCreate");
 
+        StartupTrace.begin("Logger.init");
         Logger.init(this);
+        StartupTrace.end("Logger.init");
 
         if(INSTANCE == null)
             INSTANCE = this;
 
-        AppManager.init(this);
+        StartupTrace.begin("AppManager.init");
+        AppManager.init(this, DEFER_NON_CRITICAL_INIT);
+        StartupTrace.end("AppManager.init");
+
+        // Must win against the first Client.create, so it is never deferred
+        if(BuildConfig.TDLIB_SHARDED_DISPATCH){
+            StartupTrace.begin("TdLib.dispatch");
+            Client.setDispatchThreadCount(TDLIB_DISPATCH_THREADS);
+            StartupTrace.end("TdLib.dispatch");
+        }
+
+        if(DEFER_NON_CRITICAL_INIT){
+            AsyncTask.sPool.execute(this::initTdLib);
+        }else{
+            initTdLib();
+        }
+
+        StartupTrace.end("App.onCreate");
+    }
+
+    private void initTdLib(){
+        StartupTrace.begin("TdLib.init");
 
         try {
             Client.execute(new TdApi.SetLogVerbosityLevel(1));
         } catch (Exception e) {
             Logger.LOGE("TdLib", "Failed to set verbosity", e);
         }
+
+        StartupTrace.end("TdLib.init");
+
+        AccountManager.getInstance().warmUp();
     }
 
     public static App getApplication(){
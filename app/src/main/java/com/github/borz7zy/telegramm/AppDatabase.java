@@ -2,19 +2,79 @@ package com.github.borz7zy.telegramm;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.github.borz7zy.telegramm.core.accounts.AccountDao;
 import com.github.borz7zy.telegramm.core.accounts.AccountEntity;
+import com.github.borz7zy.telegramm.core.media.MediaPathDao;
+import com.github.borz7zy.telegramm.core.media.MediaPathEntity;
 import com.github.borz7zy.telegramm.core.settings.SettingsDao;
 import com.github.borz7zy.telegramm.core.settings.SettingsEntity;
 
-@Database(entities = {AccountEntity.class, SettingsEntity.class}, version = 1)
+@Database(entities = {AccountEntity.class, SettingsEntity.class, MediaPathEntity.class}, version = 6)
 public abstract class AppDatabase extends RoomDatabase {
     public abstract AccountDao accountDao();
     public abstract SettingsDao settingsDao();
+    public abstract MediaPathDao mediaPathDao();
+
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `media_paths` ("
+                    + "`account_id` INTEGER NOT NULL, "
+                    + "`file_id` INTEGER NOT NULL, "
+                    + "`remote_unique_id` TEXT NOT NULL, "
+                    + "`path` TEXT NOT NULL, "
+                    + "`size` INTEGER NOT NULL, "
+                    + "`updated_at` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`account_id`, `file_id`))");
+        }
+    };
+
+    // File ids do not survive a restart, the old rows cannot be matched to files
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS `media_paths`");
+            db.execSQL("CREATE TABLE IF NOT EXISTS `media_paths` ("
+                    + "`account_id` INTEGER NOT NULL, "
+                    + "`remote_unique_id` TEXT NOT NULL, "
+                    + "`path` TEXT NOT NULL, "
+                    + "`size` INTEGER NOT NULL, "
+                    + "`updated_at` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`account_id`, `remote_unique_id`))");
+        }
+    };
+
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `app_settings` ADD COLUMN "
+                    + "`idle_timeout_minutes` INTEGER NOT NULL DEFAULT 10");
+        }
+    };
+
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `app_settings` ADD COLUMN "
+                    + "`keep_inactive_closed` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `app_settings` ADD COLUMN "
+                    + "`media_quota_bytes` INTEGER NOT NULL DEFAULT 1073741824");
+            db.execSQL("ALTER TABLE `app_settings` ADD COLUMN `file_type_quotas` TEXT");
+        }
+    };
 
     private static volatile AppDatabase INSTANCE;
 
@@ -24,6 +84,7 @@ public abstract class AppDatabase extends RoomDatabase {
                 if(INSTANCE == null){
                     INSTANCE = Room.databaseBuilder(context.getApplicationContext(),
                             AppDatabase.class, "tgm_db")
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6)
                             .build();
                 }
             }
@@ -5,7 +5,9 @@ import android.content.Context;
 
 import androidx.core.content.ContextCompat;
 
+import com.github.borz7zy.telegramm.background.AsyncTask;
 import com.github.borz7zy.telegramm.ui.ThemeEngine;
+import com.github.borz7zy.telegramm.utils.StartupTrace;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -25,10 +27,18 @@ public class AppManager {
     private ThemeEngine themeEngine;
 
     public static void init(Context context){
+        init(context, false);
+    }
+
+    /*
+     * With deferNonCritical the theme scheme is generated in the background
+     * instead of blocking the caller.
+     */
+    public static void init(Context context, boolean deferNonCritical){
         if(INSTANCE == null){
             synchronized (AppManager.class){
                 if(INSTANCE == null){
-                    INSTANCE = new AppManager(context);
+                    INSTANCE = new AppManager(context, deferNonCritical);
                 }
             }
         }
@@ -40,17 +50,25 @@ public class AppManager {
         return INSTANCE;
     }
     @SuppressLint("ResourceAsColor")
-    private AppManager(Context context){
+    private AppManager(Context context, boolean deferNonCritical){
         this.context = context.getApplicationContext();
 
         this.executorDb = Executors.newSingleThreadExecutor();
 
+        StartupTrace.begin("AppDatabase");
         this.db = AppDatabase.getDatabase(context);
+        StartupTrace.end("AppDatabase");
 
         this.themeEngine = new ThemeEngine();
         boolean isNight = true; // TODO
         final int seedColor = ContextCompat.getColor(context, R.color.primaryColor);
-        this.themeEngine.initTheme(seedColor, isNight);
+        if(deferNonCritical){
+            this.themeEngine.initThemeAsync(seedColor, isNight, AsyncTask.sPool);
+        }else{
+            StartupTrace.begin("ThemeEngine");
+            this.themeEngine.initTheme(seedColor, isNight);
+            StartupTrace.end("ThemeEngine");
+        }
     }
 
     // --------------------
@@ -0,0 +1,140 @@
+package com.github.borz7zy.telegramm.background;
+
+import android.os.SystemClock;
+
+import com.github.borz7zy.telegramm.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Small shared pool where tasks submitted with the same key run one at a time
+ * in submission order, while different keys run in parallel.
+ * A key's queue hands its thread back to the pool after every task,
+ * so one busy key cannot starve the others.
+ */
+public final class KeyedSerialExecutor {
+    private static final String TAG = "KeyedSerialExecutor";
+
+    // Shared by the chat screens, keyed by chat id
+    public static final KeyedSerialExecutor CHAT = new KeyedSerialExecutor("ChatWorker", 2);
+
+    private final ThreadPoolExecutor pool;
+    private final ConcurrentHashMap<Long, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    private final AtomicLong executedTasks = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private volatile long maxQueueNanos = 0;
+
+    public KeyedSerialExecutor(String name, int threads) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " #" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public void execute(long key, Runnable task) {
+        TimedTask timed = new TimedTask(task);
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) queue = new SerialQueue(k);
+            queue.tasks.add(timed);
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                pool.execute(queue);
+            }
+            return queue;
+        });
+    }
+
+    // --------------------
+    // Metrics
+    // --------------------
+
+    public int getThreadCount() {
+        return pool.getPoolSize();
+    }
+
+    public int getActiveKeys() {
+        return queues.size();
+    }
+
+    public long getExecutedTasks() {
+        return executedTasks.get();
+    }
+
+    public long getAverageQueueMillis() {
+        long count = executedTasks.get();
+        return count == 0 ? 0 : totalQueueNanos.get() / count / 1_000_000;
+    }
+
+    public long getMaxQueueMillis() {
+        return maxQueueNanos / 1_000_000;
+    }
+
+    private void recordQueueLatency(long nanos) {
+        executedTasks.incrementAndGet();
+        totalQueueNanos.addAndGet(nanos);
+        if (nanos > maxQueueNanos) maxQueueNanos = nanos;
+    }
+
+    private static final class TimedTask {
+        final Runnable task;
+        final long enqueuedAt = SystemClock.elapsedRealtimeNanos();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final class SerialQueue implements Runnable {
+        final long key;
+        // Guarded by queues.compute() for this key
+        final ArrayDeque<TimedTask> tasks = new ArrayDeque<>();
+        boolean scheduled = false;
+
+        SerialQueue(long key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            TimedTask[] next = new TimedTask[1];
+            queues.compute(key, (k, queue) -> {
+                next[0] = tasks.poll();
+                return queue;
+            });
+            if (next[0] == null) return;
+
+            recordQueueLatency(SystemClock.elapsedRealtimeNanos() - next[0].enqueuedAt);
+            try {
+                next[0].task.run();
+            } catch (Throwable t) {
+                Logger.LOGE(TAG, "Task for key " + key + " failed", t);
+            }
+
+            queues.compute(key, (k, queue) -> {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return null;
+                }
+                pool.execute(this);
+                return queue;
+            });
+        }
+    }
+}
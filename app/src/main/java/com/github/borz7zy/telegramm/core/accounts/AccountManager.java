@@ -1,9 +1,18 @@
 package com.github.borz7zy.telegramm.core.accounts;
 
 import com.github.borz7zy.telegramm.AppManager;
+import com.github.borz7zy.telegramm.utils.Logger;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * The account manager must be a singleton,
@@ -13,8 +22,37 @@ import java.util.concurrent.ConcurrentHashMap;
 public class AccountManager {
     private static AccountManager INSTANCE;
 
+    private static final int WARM_UP_THREADS = 3;
+    private static final long DEFAULT_IDLE_TIMEOUT_MINUTES = 10;
+    private static final long IDLE_CHECK_PERIOD_SECONDS = 60;
+    private static final int NO_ACCOUNT = -1;
+
     private final ConcurrentHashMap<Integer, AccountSession> sessions = new ConcurrentHashMap<>();
 
+    private final ExecutorService warmUpExecutor = Executors.newFixedThreadPool(WARM_UP_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AccountWarmUp #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // When set, only the active account keeps its TDLib client open
+    private volatile boolean keepInactiveClosed = false;
+
+    private final ScheduledExecutorService idleMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "AccountIdleMonitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 0 disables hibernation of idle sessions
+    private volatile long idleTimeoutMinutes = DEFAULT_IDLE_TIMEOUT_MINUTES;
+    // Last known active account, it is never hibernated
+    private volatile int activeAccountId = NO_ACCOUNT;
+
     public static synchronized AccountManager getInstance(){
         if(INSTANCE == null)
             INSTANCE = new AccountManager();
@@ -22,10 +60,155 @@ public class AccountManager {
         return INSTANCE;
     }
 
-    private AccountManager(){}
+    private AccountManager(){
+        idleMonitor.scheduleWithFixedDelay(this::hibernateIdleSessions,
+                IDLE_CHECK_PERIOD_SECONDS, IDLE_CHECK_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Opens the TDLib databases of stored accounts in the background.
+     * The active account is queued first, the rest are opened in parallel
+     * unless inactive accounts are kept closed.
+     */
+    public void warmUp(){
+        AccountStorage.getInstance().getSettings(settings -> {
+            if(settings != null){
+                idleTimeoutMinutes = settings.idleTimeoutMinutes;
+                keepInactiveClosed = settings.keepInactiveClosed;
+            }
+
+            AccountStorage.getInstance().getCurrentActive(active -> {
+                if(active != null){
+                    activeAccountId = active.getAccountId();
+                    openAsync(active);
+                }
+
+                if(keepInactiveClosed) return;
+
+                AccountStorage.getInstance().getAllAccounts(accounts -> {
+                    for(AccountEntity account : accounts){
+                        if(active != null && account.getAccountId() == active.getAccountId()) continue;
+                        openAsync(account);
+                    }
+                });
+            });
+        });
+    }
+
+    /*
+     * Makes the account the active one and opens it. The previous one stays
+     * open unless inactive accounts are kept closed.
+     */
 
     public void switchAccount(int accountId){
+        activeAccountId = accountId;
         AccountStorage.getInstance().setCurrentActive(accountId);
+
+        AccountSession target = sessions.get(accountId);
+        if(target != null){
+            warmUpExecutor.execute(target::open);
+        } else {
+            AppManager.getInstance().getExecutorDb().execute(() -> {
+                AccountEntity account = AppManager.getInstance()
+                        .getAppDatabase()
+                        .accountDao()
+                        .getAccountById(accountId);
+                if(account != null){
+                    openAsync(account);
+                }
+            });
+        }
+
+        if(keepInactiveClosed){
+            closeInactive(accountId);
+        }
+    }
+
+    /*
+     * Saved to the settings. Turning it on closes the inactive accounts right away.
+     */
+    public void setKeepInactiveClosed(boolean keepInactiveClosed){
+        this.keepInactiveClosed = keepInactiveClosed;
+        AccountStorage.getInstance().updateSettings(settings -> settings.keepInactiveClosed = keepInactiveClosed);
+
+        int active = activeAccountId;
+        if(keepInactiveClosed && active != NO_ACCOUNT){
+            closeInactive(active);
+        }
+    }
+
+    public boolean isKeepInactiveClosed(){
+        return keepInactiveClosed;
+    }
+
+    /*
+     * Saved to the settings, warmUp() loads it again on the next start.
+     */
+    public void setIdleTimeoutMinutes(long minutes){
+        if(minutes < 0) throw new IllegalArgumentException("Idle timeout cannot be negative!");
+        this.idleTimeoutMinutes = minutes;
+        AccountStorage.getInstance().updateSettings(settings -> settings.idleTimeoutMinutes = minutes);
+    }
+
+    public long getIdleTimeoutMinutes(){
+        return idleTimeoutMinutes;
+    }
+
+    public boolean isActiveAccount(int accountId){
+        return accountId == activeAccountId;
+    }
+
+    public int getTotalHibernations(){
+        int total = 0;
+        for(AccountSession session : sessions.values()){
+            total += session.getHibernationCount();
+        }
+        return total;
+    }
+
+    private void hibernateIdleSessions(){
+        if(idleTimeoutMinutes == 0) return;
+
+        // Read again each time, the active account may be changed from anywhere
+        AccountStorage.getInstance().getCurrentActive(active -> {
+            activeAccountId = active != null ? active.getAccountId() : NO_ACCOUNT;
+            idleMonitor.execute(this::hibernateInactiveSessions);
+        });
+    }
+
+    private void hibernateInactiveSessions(){
+        long minutes = idleTimeoutMinutes;
+        if(minutes == 0) return;
+
+        long idleMillis = TimeUnit.MINUTES.toMillis(minutes);
+        int active = activeAccountId;
+        for(Map.Entry<Integer, AccountSession> entry : sessions.entrySet()){
+            if(entry.getKey() == active) continue;
+            try {
+                if(entry.getValue().hibernateIfIdle(idleMillis)){
+                    Logger.LOGD("AccountManager", "Account " + entry.getKey() + " hibernated");
+                }
+            } catch (Throwable t) {
+                Logger.LOGE("AccountManager", "Hibernation failed for account " + entry.getKey(), t);
+            }
+        }
+    }
+
+    private void openAsync(AccountEntity account){
+        warmUpExecutor.execute(() -> {
+            long start = System.nanoTime();
+            getOrCreateSession(account).open();
+            Logger.LOGD("AccountManager", "Account " + account.getAccountId()
+                    + " opened in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        });
+    }
+
+    private void closeInactive(int activeAccountId){
+        for(Map.Entry<Integer, AccountSession> entry : sessions.entrySet()){
+            if(entry.getKey() != activeAccountId){
+                entry.getValue().close();
+            }
+        }
     }
 
     // --------------------
@@ -45,4 +228,8 @@ public class AccountManager {
                 )
         );
     }
+
+    public List<AccountSession> getSessions(){
+        return new ArrayList<>(sessions.values());
+    }
 }
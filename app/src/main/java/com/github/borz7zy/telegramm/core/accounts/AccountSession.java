@@ -2,19 +2,28 @@ package com.github.borz7zy.telegramm.core.accounts;
 
 import android.content.Context;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import com.github.borz7zy.telegramm.AppManager;
 import com.github.borz7zy.telegramm.R;
+import com.github.borz7zy.telegramm.utils.TdMediaRepository;
 
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class AccountSession {
     private final AccountEntity account;
@@ -22,15 +31,51 @@ public class AccountSession {
     private Client client;
     private boolean tdlibParametersSent = false;
 
+    // Set while TdApi.Close is in flight; work arriving meanwhile waits for the reopen
+    private boolean closing = false;
+    // Cleared while a new client has no parameters yet, work waits in pending
+    private boolean acceptingRequests = false;
+    private final List<Consumer<Client>> pending = new ArrayList<>();
+
+    // Idle hibernation bookkeeping, see AccountManager.setIdleTimeoutMinutes
+    private volatile long lastUsedAt = SystemClock.elapsedRealtime();
+    private boolean hibernated = false;
+    private long resumeStartedAt = 0;
+    private final AtomicInteger hibernationCount = new AtomicInteger();
+    private final AtomicInteger resumeCount = new AtomicInteger();
+    private final AtomicLong totalResumeMillis = new AtomicLong();
+    private volatile long lastResumeMillis = 0;
+
     private TdApi.AuthorizationState lastAuthState;
+    // Read by the idle monitor, LiveData's observer list is main thread only
+    private volatile boolean authStateObserved = false;
     private final MutableLiveData<TdApi.AuthorizationState> authStateLiveData =
-            new MutableLiveData<>();
+            new MutableLiveData<>() {
+                @Override
+                protected void onActive() {
+                    authStateObserved = true;
+                }
+
+                @Override
+                protected void onInactive() {
+                    authStateObserved = false;
+                }
+            };
 
     private final java.util.concurrent.CopyOnWriteArrayList<Client.ResultHandler> updateHandlers =
             new java.util.concurrent.CopyOnWriteArrayList<>();
 
     private boolean meRequested = false;
 
+    private final EntityStore entityStore = new EntityStore();
+    private final UpdateRouter updateRouter = new UpdateRouter();
+
+    // Identical idempotent getters in flight share one TDLib request
+    private final ConcurrentHashMap<RequestKey, List<Client.ResultHandler>> inFlight =
+            new ConcurrentHashMap<>();
+    private final AtomicLong coalescedHits = new AtomicLong();
+    private final AtomicLong coalescedMisses = new AtomicLong();
+
     public AccountSession(Context context, AccountEntity account){
         this.context = context;
         this.account = account;
@@ -39,13 +84,158 @@ public class AccountSession {
     private synchronized void ensureClient(){
         if(client != null) return;
 
+        if(hibernated){
+            hibernated = false;
+            resumeStartedAt = SystemClock.elapsedRealtime();
+        }
+
+        acceptingRequests = false;
         client = Client.create(this::onUpdate, null, null);
         client.send(new TdApi.GetAuthorizationState(), this::onUpdate);
     }
 
+    private void withClient(Consumer<Client> action){
+        lastUsedAt = SystemClock.elapsedRealtime();
+
+        Client target;
+        synchronized (this) {
+            // A resumed client needs its parameters before the first request
+            if (!closing) ensureClient();
+            if (closing || !acceptingRequests) {
+                pending.add(action);
+                return;
+            }
+            target = client;
+        }
+        action.accept(target);
+    }
+
+    /*
+     * Opens the TDLib client (and its database) if it is not open yet.
+     */
+    public void open(){
+        withClient(c -> {});
+    }
+
+    /*
+     * Puts the session into a low-power state: TDLib closes its database
+     * and cached entities are dropped. The next request reopens it.
+     */
+    public void close(){
+        Client target;
+        synchronized (this) {
+            if (client == null || closing) return;
+            closing = true;
+            target = client;
+        }
+        target.send(new TdApi.Close(), null);
+    }
+
+    public int getAccountId(){
+        return account.getAccountId();
+    }
+
+    public synchronized boolean isOpen(){
+        return client != null && !closing;
+    }
+
+    /*
+     * Closes the client if nobody has used or observed the session for idleMillis.
+     * The next request reopens it transparently.
+     */
+    public boolean hibernateIfIdle(long idleMillis){
+        // The account in use stays open however long it sits idle
+        if(AccountManager.getInstance().isActiveAccount(getAccountId())) return false;
+        if(getIdleMillis() < idleMillis) return false;
+        if(updateRouter.hasSubscribers() || !updateHandlers.isEmpty()) return false;
+        if(authStateObserved) return false;
+
+        synchronized (this) {
+            if(client == null || closing) return false;
+            hibernated = true;
+        }
+
+        hibernationCount.incrementAndGet();
+        close();
+        return true;
+    }
+
+    public long getIdleMillis(){
+        return SystemClock.elapsedRealtime() - lastUsedAt;
+    }
+
+    private void onResumed(){
+        long started;
+        synchronized (this) {
+            started = resumeStartedAt;
+            resumeStartedAt = 0;
+        }
+        if(started == 0) return;
+
+        long latency = SystemClock.elapsedRealtime() - started;
+        lastResumeMillis = latency;
+        totalResumeMillis.addAndGet(latency);
+        resumeCount.incrementAndGet();
+    }
+
+    /*
+     * Work that arrived while closing stays queued: the reopened client
+     * takes requests only once its parameters are set, see onClientReady.
+     */
+    private void onClientClosed(){
+        // File ids of the closed client mean nothing to the next one
+        TdMediaRepository.onClientClosed(account.getAccountId());
+
+        synchronized (this) {
+            client = null;
+            closing = false;
+            tdlibParametersSent = false;
+            meRequested = false;
+            entityStore.clear();
+
+            if (!pending.isEmpty()) {
+                ensureClient();
+            }
+        }
+    }
+
+    /*
+     * Runs the queued work once the client has its parameters and can
+     * serve requests. Before login that is the first Wait* state after
+     * WaitTdlibParameters, as AuthorizationStateReady only follows it.
+     */
+    private void onClientReady(){
+        List<Consumer<Client>> deferred;
+        Client target;
+        synchronized (this) {
+            if (acceptingRequests || closing) return;
+            acceptingRequests = true;
+            target = client;
+
+            deferred = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        for (Consumer<Client> action : deferred) {
+            action.accept(target);
+        }
+    }
+
+    private static boolean acceptsRequests(TdApi.AuthorizationState state){
+        switch (state.getConstructor()){
+            case TdApi.AuthorizationStateWaitTdlibParameters.CONSTRUCTOR:
+            case TdApi.AuthorizationStateLoggingOut.CONSTRUCTOR:
+            case TdApi.AuthorizationStateClosing.CONSTRUCTOR:
+            case TdApi.AuthorizationStateClosed.CONSTRUCTOR:
+                return false;
+            default:
+                return true;
+        }
+    }
+
     public LiveData<TdApi.AuthorizationState> observeAuthState(){
 
-        ensureClient();
+        open();
 
         if(lastAuthState != null){
             authStateLiveData.postValue(lastAuthState);
@@ -61,8 +251,16 @@ public class AccountSession {
             TdApi.AuthorizationState state =
                     ((TdApi.UpdateAuthorizationState)update).authorizationState;
 
-            lastAuthState = state;
-            authStateLiveData.postValue(state);
+            // an intentional close is invisible to the UI, the session reopens on demand
+            boolean closingQuietly;
+            synchronized (this) {
+                closingQuietly = closing;
+            }
+
+            if(!closingQuietly){
+                lastAuthState = state;
+                authStateLiveData.postValue(state);
+            }
 
             switch(state.getConstructor()){
 
@@ -71,11 +269,28 @@ public class AccountSession {
                     break;
 
                 case TdApi.AuthorizationStateReady.CONSTRUCTOR:
+                    onResumed();
                     loadMeOnce();
                     break;
+
+                case TdApi.AuthorizationStateLoggingOut.CONSTRUCTOR:
+                    // Local files of the account are deleted with it
+                    TdMediaRepository.release(account.getAccountId());
+                    break;
+
+                case TdApi.AuthorizationStateClosed.CONSTRUCTOR:
+                    onClientClosed();
+                    break;
+            }
+
+            if(acceptsRequests(state)){
+                onClientReady();
             }
         }
 
+        entityStore.onUpdate((TdApi.Object) update);
+        updateRouter.route((TdApi.Object) update);
+
         for (Client.ResultHandler handler : updateHandlers) {
             handler.onResult((TdApi.Object) update);
         }
@@ -164,23 +379,96 @@ public class AccountSession {
 
     public void send(TdApi.Function<?> function) {
 
-        ensureClient();
-
-        client.send(function, result -> {
+        withClient(c -> c.send(function, result -> {
 
             if(result instanceof TdApi.Error){
                 // TODO
             }
 
-        });
+        }));
     }
 
     public void send(TdApi.Function<?> function,
                      Client.ResultHandler handler) {
 
-        ensureClient();
+        withClient(c -> dispatch(c, function, handler));
+    }
+
+    private void dispatch(Client target, TdApi.Function<?> function, Client.ResultHandler handler) {
+        RequestKey key = handler != null ? RequestKey.of(function) : null;
+        if (key == null) {
+            target.send(function, handler);
+            return;
+        }
+
+        boolean[] first = {false};
+        inFlight.compute(key, (k, waiters) -> {
+            if (waiters == null) {
+                waiters = new ArrayList<>(1);
+                first[0] = true;
+            }
+            waiters.add(handler);
+            return waiters;
+        });
+
+        if (!first[0]) {
+            coalescedHits.incrementAndGet();
+            return;
+        }
+
+        coalescedMisses.incrementAndGet();
+        target.send(function, result -> {
+            entityStore.onResult(result);
 
-        client.send(function, handler);
+            List<Client.ResultHandler> waiters = inFlight.remove(key);
+            if (waiters == null) return;
+
+            for (Client.ResultHandler waiter : waiters) {
+                try {
+                    waiter.onResult(result);
+                } catch (Throwable t) {
+                    Log.e("AccountSession", "Result handler failed for " + key, t);
+                }
+            }
+        });
+    }
+
+    public void sendBatch(List<? extends TdApi.Function<?>> functions,
+                          BatchCallback callback) {
+
+        final int count = functions.size();
+        final TdApi.Object[] results = new TdApi.Object[count];
+        final TdApi.Error[] errors = new TdApi.Error[count];
+
+        if (count == 0) {
+            callback.onBatchResult(results, errors);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final Client.ResultHandler[] slotHandlers = new Client.ResultHandler[count];
+
+        for (int i = 0; i < count; ++i) {
+            final int slot = i;
+            slotHandlers[i] = result -> {
+                if (result instanceof TdApi.Error) {
+                    errors[slot] = (TdApi.Error) result;
+                } else {
+                    results[slot] = result;
+                }
+
+                // the last decrement publishes every slot written before it
+                if (remaining.decrementAndGet() == 0) {
+                    callback.onBatchResult(results, errors);
+                }
+            };
+        }
+
+        withClient(c -> {
+            for (int i = 0; i < count; ++i) {
+                dispatch(c, functions.get(i), slotHandlers[i]);
+            }
+        });
     }
 
     public void addUpdateHandler(Client.ResultHandler handler) {
@@ -191,12 +479,130 @@ public class AccountSession {
         updateHandlers.remove(handler);
     }
 
+    public void subscribe(Client.ResultHandler handler, int... updateConstructors) {
+        updateRouter.subscribe(handler, updateConstructors);
+    }
+
+    public void subscribeChat(long chatId, Client.ResultHandler handler, int... updateConstructors) {
+        updateRouter.subscribeChat(chatId, handler, updateConstructors);
+    }
+
+    public void unsubscribe(Client.ResultHandler handler) {
+        updateRouter.unsubscribe(handler);
+    }
+
     // --------------------
     // Getters/Setters
     // --------------------
 
-    public Client getClient(){
+    /*
+     * Null while the client is closing or not ready for requests yet,
+     * send() queues them instead.
+     */
+    @Nullable
+    public synchronized Client getClient(){
+        if (closing || !acceptingRequests) return null;
         ensureClient();
         return client;
     }
+
+    @Nullable
+    public synchronized Client.DispatchStatistics getDispatchStatistics(){
+        return client != null ? client.getDispatchStatistics() : null;
+    }
+
+    public UpdateRouter getUpdateRouter(){
+        return updateRouter;
+    }
+
+    public EntityStore getEntityStore(){
+        return entityStore;
+    }
+
+    @Nullable
+    public TdApi.Chat getChat(long chatId){
+        return entityStore.getChat(chatId);
+    }
+
+    @Nullable
+    public TdApi.User getUser(long userId){
+        return entityStore.getUser(userId);
+    }
+
+    public int getHibernationCount(){
+        return hibernationCount.get();
+    }
+
+    public int getResumeCount(){
+        return resumeCount.get();
+    }
+
+    public long getLastResumeMillis(){
+        return lastResumeMillis;
+    }
+
+    public long getAverageResumeMillis(){
+        int count = resumeCount.get();
+        return count == 0 ? 0 : totalResumeMillis.get() / count;
+    }
+
+    public long getCoalescedHits(){
+        return coalescedHits.get();
+    }
+
+    public long getCoalescedMisses(){
+        return coalescedMisses.get();
+    }
+
+    private static final class RequestKey {
+        final int constructor;
+        final long id;
+
+        private RequestKey(int constructor, long id) {
+            this.constructor = constructor;
+            this.id = id;
+        }
+
+        // Only side-effect free getters whose answer depends on a single id may be shared
+        static RequestKey of(TdApi.Function<?> function) {
+            switch (function.getConstructor()) {
+                case TdApi.GetChat.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetChat.CONSTRUCTOR, ((TdApi.GetChat) function).chatId);
+                case TdApi.GetUser.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetUser.CONSTRUCTOR, ((TdApi.GetUser) function).userId);
+                case TdApi.GetUserFullInfo.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetUserFullInfo.CONSTRUCTOR, ((TdApi.GetUserFullInfo) function).userId);
+                case TdApi.GetSupergroup.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetSupergroup.CONSTRUCTOR, ((TdApi.GetSupergroup) function).supergroupId);
+                case TdApi.GetSupergroupFullInfo.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetSupergroupFullInfo.CONSTRUCTOR, ((TdApi.GetSupergroupFullInfo) function).supergroupId);
+                case TdApi.GetBasicGroup.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetBasicGroup.CONSTRUCTOR, ((TdApi.GetBasicGroup) function).basicGroupId);
+                case TdApi.GetBasicGroupFullInfo.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetBasicGroupFullInfo.CONSTRUCTOR, ((TdApi.GetBasicGroupFullInfo) function).basicGroupId);
+                case TdApi.GetFile.CONSTRUCTOR:
+                    return new RequestKey(TdApi.GetFile.CONSTRUCTOR, ((TdApi.GetFile) function).fileId);
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RequestKey)) return false;
+            RequestKey that = (RequestKey) o;
+            return constructor == that.constructor && id == that.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * constructor + Long.hashCode(id);
+        }
+
+        @Override
+        public String toString() {
+            return constructor + ":" + id;
+        }
+    }
 }
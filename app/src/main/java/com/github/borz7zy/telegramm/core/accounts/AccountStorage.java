@@ -1,13 +1,25 @@
 package com.github.borz7zy.telegramm.core.accounts;
 
+import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
 
 import com.github.borz7zy.telegramm.AppManager;
 import com.github.borz7zy.telegramm.core.settings.SettingsDao;
 import com.github.borz7zy.telegramm.core.settings.SettingsEntity;
 import com.github.borz7zy.telegramm.utils.Logger;
+import com.github.borz7zy.telegramm.utils.TdMediaRepository;
 
+import org.drinkless.tdlib.TdApi;
+
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /*
  * The account storage must have:
@@ -24,7 +36,34 @@ public class AccountStorage{
         return INSTANCE;
     }
 
-    private AccountStorage(){}
+    private static final String TAG = "AccountStorage";
+
+    private static final long DEFAULT_MEDIA_QUOTA_BYTES = 1024L * 1024 * 1024;
+    private static final long MEDIA_CHECK_DELAY_MINUTES = 5;
+    private static final long MEDIA_CHECK_PERIOD_MINUTES = 30;
+    // Eviction frees down to this share of a quota, so it does not run on every check
+    private static final double EVICTION_TARGET = 0.8;
+
+    private final ScheduledExecutorService mediaMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "AccountMediaMonitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 0 disables the quota of the whole account
+    private volatile long mediaQuotaBytes = DEFAULT_MEDIA_QUOTA_BYTES;
+    // Quotas of single file types, by MediaUsage type name
+    private final ConcurrentHashMap<String, FileTypeQuota> fileTypeQuotas = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, MediaUsage> mediaUsage = new ConcurrentHashMap<>();
+    private final MutableLiveData<MediaUsage> latestMediaUsage = new MutableLiveData<>();
+
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final AtomicLong evictedFiles = new AtomicLong();
+
+    private AccountStorage(){
+        getSettings(this::loadMediaQuotas);
+        mediaMonitor.scheduleWithFixedDelay(this::checkMediaSpace,
+                MEDIA_CHECK_DELAY_MINUTES, MEDIA_CHECK_PERIOD_MINUTES, TimeUnit.MINUTES);
+    }
 
     public LiveData<AccountEntity> observeActiveAccount(){
         return AppManager.getInstance()
@@ -56,7 +95,7 @@ public class AccountStorage{
 
             long newId = dao.insert(newAccount);
 
-            setCurrentActive((int) newId);
+            AccountManager.getInstance().switchAccount((int) newId);
         });
     }
 
@@ -108,6 +147,28 @@ public class AccountStorage{
     }
 
     public void setCurrentActive(Integer id) {
+        updateSettings(settings -> {
+            settings.currentActiveId = id;
+            Logger.LOGD("AccountStorage", "Active account saved: " + id);
+        });
+    }
+
+    /*
+     * Stored settings, null if none were saved yet.
+     * The callback runs on the database executor.
+     */
+    public void getSettings(Consumer<SettingsEntity> callback) {
+        AppManager.getInstance().getExecutorDb().execute(() ->
+                callback.accept(AppManager.getInstance()
+                        .getAppDatabase()
+                        .settingsDao()
+                        .getSettings()));
+    }
+
+    /*
+     * Applies the change to the stored settings, creating them first if needed.
+     */
+    public void updateSettings(Consumer<SettingsEntity> change) {
         AppManager.getInstance().getExecutorDb().execute(() -> {
 
             SettingsDao settingsDao = AppManager.getInstance()
@@ -119,14 +180,224 @@ public class AccountStorage{
             if (settings == null) {
                 settings = new SettingsEntity();
                 settings.id = 1;
-                settings.currentActiveId = id;
+                change.accept(settings);
                 settingsDao.insert(settings);
             } else {
-                settings.currentActiveId = id;
+                change.accept(settings);
                 settingsDao.update(settings);
             }
+        });
+    }
 
-            Logger.LOGD("AccountStorage", "Active account saved: " + id);
+    // --------------------
+    // Media space
+    // --------------------
+
+    /*
+     * Quotas are saved to the settings and loaded again on the next start.
+     */
+    public void setMediaQuotaBytes(long bytes){
+        if(bytes < 0) throw new IllegalArgumentException("Media quota cannot be negative!");
+        this.mediaQuotaBytes = bytes;
+        updateSettings(settings -> settings.mediaQuotaBytes = bytes);
+    }
+
+    public long getMediaQuotaBytes(){
+        return mediaQuotaBytes;
+    }
+
+    /*
+     * Limits the files of one type, e.g. videos, in every account. 0 removes the limit.
+     */
+    public void setFileTypeQuota(TdApi.FileType type, long bytes){
+        if(bytes < 0) throw new IllegalArgumentException("Media quota cannot be negative!");
+        String name = MediaUsage.typeName(type);
+        if(bytes == 0){
+            fileTypeQuotas.remove(name);
+        } else {
+            fileTypeQuotas.put(name, new FileTypeQuota(type, bytes));
+        }
+        updateSettings(settings -> settings.fileTypeQuotas = encodeFileTypeQuotas());
+    }
+
+    /*
+     * Usage found by the last check of the account, null if it was not checked yet.
+     */
+    @Nullable
+    public MediaUsage getMediaUsage(int accountId){
+        return mediaUsage.get(accountId);
+    }
+
+    /*
+     * Every new usage count, of any account.
+     */
+    public LiveData<MediaUsage> observeMediaUsage(){
+        return latestMediaUsage;
+    }
+
+    public long getEvictedBytes(){
+        return evictedBytes.get();
+    }
+
+    public long getEvictedFiles(){
+        return evictedFiles.get();
+    }
+
+    /*
+     * Checks every open session. Hibernated ones are not woken up for it,
+     * they are checked the next time they are open. A check counts as use,
+     * so it may delay the hibernation of an idle session once.
+     */
+    private void checkMediaSpace(){
+        for(AccountSession session : AccountManager.getInstance().getSessions()){
+            if(!session.isOpen()) continue;
+            try {
+                checkMediaSpace(session);
+            } catch (Throwable t) {
+                Logger.LOGE(TAG, "Media check failed for account " + session.getAccountId(), t);
+            }
+        }
+    }
+
+    /*
+     * Counts the media of the account and, if it is over a quota, lets TDLib
+     * delete the least recently accessed files until it is back under it.
+     * Files of pinned chats are kept.
+     */
+    public void checkMediaSpace(AccountSession session){
+        final int accountId = session.getAccountId();
+
+        // chatLimit 0 puts every chat into one entry, only the per-type totals are needed
+        session.send(new TdApi.GetStorageStatistics(0), result -> {
+            if(!(result instanceof TdApi.StorageStatistics stats)){
+                if(result instanceof TdApi.Error error){
+                    Logger.LOGD(TAG, "Storage statistics of account " + accountId + " failed: " + error.message);
+                }
+                return;
+            }
+
+            MediaUsage usage = MediaUsage.from(accountId, stats);
+            mediaUsage.put(accountId, usage);
+            latestMediaUsage.postValue(usage);
+            Logger.LOGD(TAG, "Media of " + usage);
+
+            List<TdApi.OptimizeStorage> requests = evictionRequests(session, usage);
+            if(!requests.isEmpty()){
+                runEviction(session, requests, 0);
+            }
+        });
+    }
+
+    private List<TdApi.OptimizeStorage> evictionRequests(AccountSession session, MediaUsage usage){
+        ArrayList<TdApi.OptimizeStorage> requests = new ArrayList<>();
+        long[] pinned = null;
+
+        for(FileTypeQuota quota : fileTypeQuotas.values()){
+            if(usage.getBytes(MediaUsage.typeName(quota.type)) <= quota.bytes) continue;
+            if(pinned == null) pinned = session.getEntityStore().getPinnedChatIds();
+            requests.add(optimizeStorage((long) (quota.bytes * EVICTION_TARGET),
+                    new TdApi.FileType[]{quota.type}, pinned));
+        }
+
+        long quota = mediaQuotaBytes;
+        if(quota > 0 && usage.totalBytes > quota){
+            if(pinned == null) pinned = session.getEntityStore().getPinnedChatIds();
+            requests.add(optimizeStorage((long) (quota * EVICTION_TARGET), null, pinned));
+        }
+        return requests;
+    }
+
+    /*
+     * TDLib deletes the least recently accessed files first. ttl and count
+     * are 0 so only the size limit applies, the defaults would also delete
+     * everything not accessed for about a day. Files accessed within the
+     * immunity delay (an hour by default) are never deleted.
+     */
+    private static TdApi.OptimizeStorage optimizeStorage(long size, @Nullable TdApi.FileType[] fileTypes,
+                                                         long[] excludeChatIds){
+        return new TdApi.OptimizeStorage(size, 0, 0, -1, fileTypes, null, excludeChatIds, true, 0);
+    }
+
+    /*
+     * One request at a time, each works on what the previous one left.
+     */
+    private void runEviction(AccountSession session, List<TdApi.OptimizeStorage> requests, int index){
+        if(index >= requests.size()){
+            // Deleted files must not be served from cached paths
+            TdMediaRepository.forSession(session).revalidatePaths();
+            return;
+        }
+
+        session.send(requests.get(index), result -> {
+            if(result instanceof TdApi.StorageStatistics deleted){
+                evictedBytes.addAndGet(deleted.size);
+                evictedFiles.addAndGet(deleted.count);
+                Logger.LOGD(TAG, "Account " + session.getAccountId() + ": evicted " + deleted.size / 1024
+                        + " KB in " + deleted.count + " files, total " + evictedBytes.get() / 1024 + " KB");
+            } else if(result instanceof TdApi.Error error){
+                Logger.LOGD(TAG, "Eviction of account " + session.getAccountId() + " failed: " + error.message);
+            }
+            runEviction(session, requests, index + 1);
         });
     }
+
+    // --------------------
+    // Saved quotas
+    // --------------------
+
+    // Runs on the database executor
+    private void loadMediaQuotas(@Nullable SettingsEntity settings){
+        if(settings == null) return;
+        mediaQuotaBytes = settings.mediaQuotaBytes;
+        if(settings.fileTypeQuotas == null || settings.fileTypeQuotas.isEmpty()) return;
+
+        for(String entry : settings.fileTypeQuotas.split(",")){
+            String[] parts = entry.split(":");
+            if(parts.length != 2) continue;
+            try {
+                TdApi.FileType type = fileType(Integer.parseInt(parts[0]));
+                long bytes = Long.parseLong(parts[1]);
+                if(type != null && bytes > 0){
+                    fileTypeQuotas.put(MediaUsage.typeName(type), new FileTypeQuota(type, bytes));
+                }
+            } catch (NumberFormatException e) {
+                Logger.LOGE(TAG, "Bad file type quota: " + entry, e);
+            }
+        }
+    }
+
+    // Constructor ids are stable across TDLib builds, class names are not after minification
+    private String encodeFileTypeQuotas(){
+        StringBuilder sb = new StringBuilder();
+        for(FileTypeQuota quota : fileTypeQuotas.values()){
+            if(sb.length() > 0) sb.append(',');
+            sb.append(quota.type.getConstructor()).append(':').append(quota.bytes);
+        }
+        return sb.toString();
+    }
+
+    @Nullable
+    private static TdApi.FileType fileType(int constructor){
+        switch(constructor){
+            case TdApi.FileTypePhoto.CONSTRUCTOR: return new TdApi.FileTypePhoto();
+            case TdApi.FileTypeVideo.CONSTRUCTOR: return new TdApi.FileTypeVideo();
+            case TdApi.FileTypeVideoNote.CONSTRUCTOR: return new TdApi.FileTypeVideoNote();
+            case TdApi.FileTypeVoiceNote.CONSTRUCTOR: return new TdApi.FileTypeVoiceNote();
+            case TdApi.FileTypeAudio.CONSTRUCTOR: return new TdApi.FileTypeAudio();
+            case TdApi.FileTypeAnimation.CONSTRUCTOR: return new TdApi.FileTypeAnimation();
+            case TdApi.FileTypeDocument.CONSTRUCTOR: return new TdApi.FileTypeDocument();
+            case TdApi.FileTypeSticker.CONSTRUCTOR: return new TdApi.FileTypeSticker();
+            default: return null;
+        }
+    }
+
+    private static final class FileTypeQuota {
+        final TdApi.FileType type;
+        final long bytes;
+
+        FileTypeQuota(TdApi.FileType type, long bytes){
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
 }
@@ -0,0 +1,12 @@
+package com.github.borz7zy.telegramm.core.accounts;
+
+import org.drinkless.tdlib.TdApi;
+
+/*
+ * Called once after every request of a batch has completed.
+ * Slot i of results holds the answer to request i, or null if it failed,
+ * in which case slot i of errors holds the TDLib error.
+ */
+public interface BatchCallback {
+    void onBatchResult(TdApi.Object[] results, TdApi.Error[] errors);
+}
@@ -0,0 +1,289 @@
+package com.github.borz7zy.telegramm.core.accounts;
+
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/*
+ * Per-account in-memory copy of chats and users.
+ * It is fed by the session's update stream, so readers get
+ * the latest known state without a TDLib round trip.
+ * Chats are kept while the session lives, users are LRU-bounded.
+ * Stored objects are replaced rather than changed in place, so they
+ * can be read from any thread.
+ */
+public class EntityStore {
+    private static final int MAX_USERS = 4096;
+
+    private final ConcurrentHashMap<Long, TdApi.Chat> chats = new ConcurrentHashMap<>();
+    private final LruCache<Long, TdApi.User> users = new LruCache<>(MAX_USERS);
+
+    @Nullable
+    public TdApi.Chat getChat(long chatId) {
+        return chats.get(chatId);
+    }
+
+    @Nullable
+    public TdApi.User getUser(long userId) {
+        return users.get(userId);
+    }
+
+    public int getChatCount() {
+        return chats.size();
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /*
+     * Known chats that are pinned in any chat list.
+     */
+    public long[] getPinnedChatIds() {
+        ArrayList<Long> ids = new ArrayList<>();
+        for (TdApi.Chat chat : chats.values()) {
+            TdApi.ChatPosition[] positions = chat.positions;
+            if (positions == null) continue;
+
+            for (TdApi.ChatPosition position : positions) {
+                if (position.isPinned) {
+                    ids.add(chat.id);
+                    break;
+                }
+            }
+        }
+
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; ++i) result[i] = ids.get(i);
+        return result;
+    }
+
+    public void clear() {
+        chats.clear();
+        users.evictAll();
+    }
+
+    /*
+     * Stores objects returned as results of GetChat / GetUser.
+     */
+    void onResult(TdApi.Object object) {
+        if (object instanceof TdApi.Chat chat) {
+            chats.put(chat.id, chat);
+        } else if (object instanceof TdApi.User user) {
+            users.put(user.id, user);
+        }
+    }
+
+    void onUpdate(TdApi.Object update) {
+        switch (update.getConstructor()) {
+            case TdApi.UpdateNewChat.CONSTRUCTOR: {
+                TdApi.Chat chat = ((TdApi.UpdateNewChat) update).chat;
+                chats.put(chat.id, chat);
+                break;
+            }
+            case TdApi.UpdateChatTitle.CONSTRUCTOR: {
+                TdApi.UpdateChatTitle u = (TdApi.UpdateChatTitle) update;
+                updateChat(u.chatId, chat -> chat.title = u.title);
+                break;
+            }
+            case TdApi.UpdateChatPhoto.CONSTRUCTOR: {
+                TdApi.UpdateChatPhoto u = (TdApi.UpdateChatPhoto) update;
+                updateChat(u.chatId, chat -> chat.photo = u.photo);
+                break;
+            }
+            case TdApi.UpdateChatPosition.CONSTRUCTOR: {
+                TdApi.UpdateChatPosition u = (TdApi.UpdateChatPosition) update;
+                updateChat(u.chatId, chat -> chat.positions = mergePosition(chat.positions, u.position));
+                break;
+            }
+            case TdApi.UpdateChatLastMessage.CONSTRUCTOR: {
+                TdApi.UpdateChatLastMessage u = (TdApi.UpdateChatLastMessage) update;
+                updateChat(u.chatId, chat -> {
+                    chat.lastMessage = u.lastMessage;
+                    if (u.positions != null) {
+                        for (TdApi.ChatPosition position : u.positions) {
+                            chat.positions = mergePosition(chat.positions, position);
+                        }
+                    }
+                });
+                break;
+            }
+            case TdApi.UpdateChatReadInbox.CONSTRUCTOR: {
+                TdApi.UpdateChatReadInbox u = (TdApi.UpdateChatReadInbox) update;
+                updateChat(u.chatId, chat -> {
+                    chat.lastReadInboxMessageId = u.lastReadInboxMessageId;
+                    chat.unreadCount = u.unreadCount;
+                });
+                break;
+            }
+            case TdApi.UpdateChatReadOutbox.CONSTRUCTOR: {
+                TdApi.UpdateChatReadOutbox u = (TdApi.UpdateChatReadOutbox) update;
+                updateChat(u.chatId, chat -> chat.lastReadOutboxMessageId = u.lastReadOutboxMessageId);
+                break;
+            }
+            case TdApi.UpdateUser.CONSTRUCTOR: {
+                TdApi.User user = ((TdApi.UpdateUser) update).user;
+                users.put(user.id, user);
+                break;
+            }
+            case TdApi.UpdateUserStatus.CONSTRUCTOR: {
+                TdApi.UpdateUserStatus u = (TdApi.UpdateUserStatus) update;
+                // LruCache locks on itself, so get and put stay one step
+                synchronized (users) {
+                    TdApi.User user = users.get(u.userId);
+                    if (user != null) {
+                        TdApi.User copy = copyUser(user);
+                        copy.status = u.status;
+                        users.put(copy.id, copy);
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /*
+     * Stored objects are never changed: an update is applied to a copy
+     * that then replaces the stored chat, so readers see either the old
+     * or the new state without locking.
+     */
+    private void updateChat(long chatId, Consumer<TdApi.Chat> change) {
+        chats.computeIfPresent(chatId, (id, chat) -> {
+            TdApi.Chat copy = copyChat(chat);
+            change.accept(copy);
+            return copy;
+        });
+    }
+
+    /*
+     * Field by field, the list follows td_api.tl of the TDLib version the
+     * tdlib module is built from and has to be updated with it.
+     */
+    static TdApi.Chat copyChat(TdApi.Chat chat) {
+        TdApi.Chat copy = new TdApi.Chat();
+        copy.id = chat.id;
+        copy.type = chat.type;
+        copy.title = chat.title;
+        copy.photo = chat.photo;
+        copy.accentColorId = chat.accentColorId;
+        copy.backgroundCustomEmojiId = chat.backgroundCustomEmojiId;
+        copy.upgradedGiftColors = chat.upgradedGiftColors;
+        copy.profileAccentColorId = chat.profileAccentColorId;
+        copy.profileBackgroundCustomEmojiId = chat.profileBackgroundCustomEmojiId;
+        copy.permissions = chat.permissions;
+        copy.lastMessage = chat.lastMessage;
+        copy.positions = chat.positions;
+        copy.chatLists = chat.chatLists;
+        copy.messageSenderId = chat.messageSenderId;
+        copy.blockList = chat.blockList;
+        copy.hasProtectedContent = chat.hasProtectedContent;
+        copy.isTranslatable = chat.isTranslatable;
+        copy.isMarkedAsUnread = chat.isMarkedAsUnread;
+        copy.viewAsTopics = chat.viewAsTopics;
+        copy.hasScheduledMessages = chat.hasScheduledMessages;
+        copy.canBeDeletedOnlyForSelf = chat.canBeDeletedOnlyForSelf;
+        copy.canBeDeletedForAllUsers = chat.canBeDeletedForAllUsers;
+        copy.canBeReported = chat.canBeReported;
+        copy.defaultDisableNotification = chat.defaultDisableNotification;
+        copy.unreadCount = chat.unreadCount;
+        copy.lastReadInboxMessageId = chat.lastReadInboxMessageId;
+        copy.lastReadOutboxMessageId = chat.lastReadOutboxMessageId;
+        copy.unreadMentionCount = chat.unreadMentionCount;
+        copy.unreadReactionCount = chat.unreadReactionCount;
+        copy.notificationSettings = chat.notificationSettings;
+        copy.availableReactions = chat.availableReactions;
+        copy.messageAutoDeleteTime = chat.messageAutoDeleteTime;
+        copy.emojiStatus = chat.emojiStatus;
+        copy.background = chat.background;
+        copy.theme = chat.theme;
+        copy.actionBar = chat.actionBar;
+        copy.businessBotManageBar = chat.businessBotManageBar;
+        copy.videoChat = chat.videoChat;
+        copy.pendingJoinRequests = chat.pendingJoinRequests;
+        copy.replyMarkupMessageId = chat.replyMarkupMessageId;
+        copy.draftMessage = chat.draftMessage;
+        copy.clientData = chat.clientData;
+        return copy;
+    }
+
+    static TdApi.User copyUser(TdApi.User user) {
+        TdApi.User copy = new TdApi.User();
+        copy.id = user.id;
+        copy.firstName = user.firstName;
+        copy.lastName = user.lastName;
+        copy.usernames = user.usernames;
+        copy.phoneNumber = user.phoneNumber;
+        copy.status = user.status;
+        copy.profilePhoto = user.profilePhoto;
+        copy.accentColorId = user.accentColorId;
+        copy.backgroundCustomEmojiId = user.backgroundCustomEmojiId;
+        copy.upgradedGiftColors = user.upgradedGiftColors;
+        copy.profileAccentColorId = user.profileAccentColorId;
+        copy.profileBackgroundCustomEmojiId = user.profileBackgroundCustomEmojiId;
+        copy.emojiStatus = user.emojiStatus;
+        copy.isContact = user.isContact;
+        copy.isMutualContact = user.isMutualContact;
+        copy.isCloseFriend = user.isCloseFriend;
+        copy.verificationStatus = user.verificationStatus;
+        copy.isPremium = user.isPremium;
+        copy.isSupport = user.isSupport;
+        copy.restrictionInfo = user.restrictionInfo;
+        copy.activeStoryState = user.activeStoryState;
+        copy.restrictsNewChats = user.restrictsNewChats;
+        copy.paidMessageStarCount = user.paidMessageStarCount;
+        copy.haveAccess = user.haveAccess;
+        copy.type = user.type;
+        copy.languageCode = user.languageCode;
+        copy.addedToAttachmentMenu = user.addedToAttachmentMenu;
+        return copy;
+    }
+
+    /*
+     * Replaces the position for the same chat list, drops it when order is 0.
+     */
+    static TdApi.ChatPosition[] mergePosition(TdApi.ChatPosition[] positions, TdApi.ChatPosition position) {
+        if (positions == null) positions = new TdApi.ChatPosition[0];
+
+        int index = -1;
+        for (int i = 0; i < positions.length; ++i) {
+            if (isSameList(positions[i].list, position.list)) {
+                index = i;
+                break;
+            }
+        }
+
+        if (position.order == 0) {
+            if (index < 0) return positions;
+            TdApi.ChatPosition[] result = new TdApi.ChatPosition[positions.length - 1];
+            System.arraycopy(positions, 0, result, 0, index);
+            System.arraycopy(positions, index + 1, result, index, positions.length - index - 1);
+            return result;
+        }
+
+        if (index >= 0) {
+            TdApi.ChatPosition[] result = positions.clone();
+            result[index] = position;
+            return result;
+        }
+
+        TdApi.ChatPosition[] result = new TdApi.ChatPosition[positions.length + 1];
+        System.arraycopy(positions, 0, result, 0, positions.length);
+        result[positions.length] = position;
+        return result;
+    }
+
+    public static boolean isSameList(TdApi.ChatList a, TdApi.ChatList b) {
+        if (a == null || b == null) return a == b;
+        if (a.getConstructor() != b.getConstructor()) return false;
+        if (a instanceof TdApi.ChatListFolder folderA) {
+            return folderA.chatFolderId == ((TdApi.ChatListFolder) b).chatFolderId;
+        }
+        return true;
+    }
+}
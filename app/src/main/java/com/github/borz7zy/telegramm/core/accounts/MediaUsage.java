@@ -0,0 +1,79 @@
+package com.github.borz7zy.telegramm.core.accounts;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Media files of one account as TDLib counted them at a storage check.
+ * File types are keyed by their TdApi class name, e.g. "FileTypePhoto".
+ */
+public final class MediaUsage {
+    public final int accountId;
+    public final long totalBytes;
+    public final int fileCount;
+    // System.currentTimeMillis() of the check
+    public final long checkedAt;
+
+    private final Map<String, Long> bytesByType;
+    private final Map<String, Integer> filesByType;
+
+    private MediaUsage(int accountId, long totalBytes, int fileCount, long checkedAt,
+                       Map<String, Long> bytesByType, Map<String, Integer> filesByType) {
+        this.accountId = accountId;
+        this.totalBytes = totalBytes;
+        this.fileCount = fileCount;
+        this.checkedAt = checkedAt;
+        this.bytesByType = Collections.unmodifiableMap(bytesByType);
+        this.filesByType = Collections.unmodifiableMap(filesByType);
+    }
+
+    static MediaUsage from(int accountId, TdApi.StorageStatistics stats) {
+        HashMap<String, Long> bytes = new HashMap<>();
+        HashMap<String, Integer> files = new HashMap<>();
+
+        if (stats.byChat != null) {
+            for (TdApi.StorageStatisticsByChat chat : stats.byChat) {
+                if (chat.byFileType == null) continue;
+                for (TdApi.StorageStatisticsByFileType byType : chat.byFileType) {
+                    String type = typeName(byType.fileType);
+                    bytes.merge(type, byType.size, Long::sum);
+                    files.merge(type, byType.count, Integer::sum);
+                }
+            }
+        }
+
+        return new MediaUsage(accountId, stats.size, stats.count, System.currentTimeMillis(), bytes, files);
+    }
+
+    static String typeName(TdApi.FileType type) {
+        return type != null ? type.getClass().getSimpleName() : "FileTypeNone";
+    }
+
+    public long getBytes(String fileType) {
+        Long bytes = bytesByType.get(fileType);
+        return bytes != null ? bytes : 0;
+    }
+
+    public int getFileCount(String fileType) {
+        Integer count = filesByType.get(fileType);
+        return count != null ? count : 0;
+    }
+
+    public Map<String, Long> getBytesByType() {
+        return bytesByType;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("account ").append(accountId)
+                .append(": ").append(totalBytes / 1024).append(" KB in ").append(fileCount).append(" files");
+        for (Map.Entry<String, Long> entry : bytesByType.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append(' ').append(entry.getValue() / 1024).append(" KB");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.borz7zy.telegramm.core.accounts;
+
+import org.drinkless.tdlib.Client;
+import org.drinkless.tdlib.TdApi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Delivers updates only to handlers subscribed to their constructor,
+ * optionally narrowed down to a single chat.
+ * Chat-scoped updates reach both the subscribers of that chat
+ * and the subscribers of the update type as a whole.
+ */
+public class UpdateRouter {
+
+    private final ConcurrentHashMap<Integer, CopyOnWriteArrayList<Client.ResultHandler>> typeSubscribers =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<Integer, CopyOnWriteArrayList<Client.ResultHandler>>> chatSubscribers =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLong routedUpdates = new AtomicLong();
+    private final AtomicLong unroutedUpdates = new AtomicLong();
+
+    public void subscribe(Client.ResultHandler handler, int... updateConstructors) {
+        for (int constructor : updateConstructors) {
+            typeSubscribers.compute(constructor, (k, list) -> {
+                if (list == null) list = new CopyOnWriteArrayList<>();
+                list.addIfAbsent(handler);
+                return list;
+            });
+        }
+    }
+
+    public void subscribeChat(long chatId, Client.ResultHandler handler, int... updateConstructors) {
+        chatSubscribers.compute(chatId, (id, byType) -> {
+            if (byType == null) byType = new ConcurrentHashMap<>();
+            for (int constructor : updateConstructors) {
+                CopyOnWriteArrayList<Client.ResultHandler> list =
+                        byType.computeIfAbsent(constructor, k -> new CopyOnWriteArrayList<>());
+                list.addIfAbsent(handler);
+            }
+            return byType;
+        });
+    }
+
+    public void unsubscribe(Client.ResultHandler handler) {
+        for (Integer constructor : typeSubscribers.keySet()) {
+            typeSubscribers.computeIfPresent(constructor, (k, list) -> {
+                list.remove(handler);
+                return list.isEmpty() ? null : list;
+            });
+        }
+
+        for (Long chatId : chatSubscribers.keySet()) {
+            chatSubscribers.computeIfPresent(chatId, (id, byType) -> {
+                byType.values().removeIf(list -> {
+                    list.remove(handler);
+                    return list.isEmpty();
+                });
+                return byType.isEmpty() ? null : byType;
+            });
+        }
+    }
+
+    /*
+     * Returns the number of handlers the update was delivered to.
+     */
+    public int route(TdApi.Object update) {
+        int constructor = update.getConstructor();
+        int delivered = 0;
+
+        CopyOnWriteArrayList<Client.ResultHandler> byType = typeSubscribers.get(constructor);
+        if (byType != null) {
+            for (Client.ResultHandler handler : byType) {
+                handler.onResult(update);
+                ++delivered;
+            }
+        }
+
+        long chatId = chatIdOf(update);
+        if (chatId != 0) {
+            ConcurrentHashMap<Integer, CopyOnWriteArrayList<Client.ResultHandler>> chat = chatSubscribers.get(chatId);
+            CopyOnWriteArrayList<Client.ResultHandler> byChat = chat != null ? chat.get(constructor) : null;
+            if (byChat != null) {
+                for (Client.ResultHandler handler : byChat) {
+                    handler.onResult(update);
+                    ++delivered;
+                }
+            }
+        }
+
+        if (delivered > 0) {
+            routedUpdates.incrementAndGet();
+        } else {
+            unroutedUpdates.incrementAndGet();
+        }
+        return delivered;
+    }
+
+    public boolean hasSubscribers() {
+        return !typeSubscribers.isEmpty() || !chatSubscribers.isEmpty();
+    }
+
+    public long getRoutedUpdates() {
+        return routedUpdates.get();
+    }
+
+    public long getUnroutedUpdates() {
+        return unroutedUpdates.get();
+    }
+
+    /*
+     * Chat the update belongs to, or 0 if it is not chat-scoped.
+     */
+    public static long chatIdOf(TdApi.Object update) {
+        switch (update.getConstructor()) {
+            case TdApi.UpdateNewMessage.CONSTRUCTOR:
+                return ((TdApi.UpdateNewMessage) update).message.chatId;
+            case TdApi.UpdateMessageSendSucceeded.CONSTRUCTOR:
+                return ((TdApi.UpdateMessageSendSucceeded) update).message.chatId;
+            case TdApi.UpdateMessageSendFailed.CONSTRUCTOR:
+                return ((TdApi.UpdateMessageSendFailed) update).message.chatId;
+            case TdApi.UpdateDeleteMessages.CONSTRUCTOR:
+                return ((TdApi.UpdateDeleteMessages) update).chatId;
+            case TdApi.UpdateMessageEdited.CONSTRUCTOR:
+                return ((TdApi.UpdateMessageEdited) update).chatId;
+            case TdApi.UpdateMessageContent.CONSTRUCTOR:
+                return ((TdApi.UpdateMessageContent) update).chatId;
+            case TdApi.UpdateChatTitle.CONSTRUCTOR:
+                return ((TdApi.UpdateChatTitle) update).chatId;
+            case TdApi.UpdateChatPhoto.CONSTRUCTOR:
+                return ((TdApi.UpdateChatPhoto) update).chatId;
+            case TdApi.UpdateChatAction.CONSTRUCTOR:
+                return ((TdApi.UpdateChatAction) update).chatId;
+            case TdApi.UpdateChatLastMessage.CONSTRUCTOR:
+                return ((TdApi.UpdateChatLastMessage) update).chatId;
+            case TdApi.UpdateChatPosition.CONSTRUCTOR:
+                return ((TdApi.UpdateChatPosition) update).chatId;
+            case TdApi.UpdateChatReadInbox.CONSTRUCTOR:
+                return ((TdApi.UpdateChatReadInbox) update).chatId;
+            case TdApi.UpdateChatReadOutbox.CONSTRUCTOR:
+                return ((TdApi.UpdateChatReadOutbox) update).chatId;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.borz7zy.telegramm.core.media;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface MediaPathDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertAll(List<MediaPathEntity> paths);
+
+    @Query("SELECT * FROM media_paths WHERE account_id = :accountId ORDER BY updated_at DESC LIMIT :limit")
+    List<MediaPathEntity> getRecent(int accountId, int limit);
+
+    @Query("DELETE FROM media_paths WHERE account_id = :accountId AND remote_unique_id IN (:uniqueIds)")
+    void deleteFiles(int accountId, List<String> uniqueIds);
+
+    @Query("DELETE FROM media_paths WHERE account_id = :accountId")
+    void deleteAccount(int accountId);
+
+    /*
+     * Keeps only the most recently stored paths of the account.
+     */
+    @Query("""
+    DELETE FROM media_paths
+    WHERE account_id = :accountId
+      AND remote_unique_id NOT IN (
+        SELECT remote_unique_id FROM media_paths
+        WHERE account_id = :accountId
+        ORDER BY updated_at DESC
+        LIMIT :keep)
+    """)
+    void trim(int accountId, int keep);
+}
@@ -0,0 +1,49 @@
+package com.github.borz7zy.telegramm.core.media;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+
+/*
+ * Local path of a downloaded file of an account, so it can be shown
+ * after a restart without asking TDLib again. Keyed by the remote file,
+ * TDLib file ids change whenever the client is reopened.
+ */
+@Entity(tableName = "media_paths", primaryKeys = {"account_id", "remote_unique_id"})
+public class MediaPathEntity {
+
+    @ColumnInfo(name = "account_id")
+    public int accountId;
+
+    // Remote file the path was downloaded from
+    @NonNull
+    @ColumnInfo(name = "remote_unique_id")
+    public String remoteUniqueId = "";
+
+    @NonNull
+    @ColumnInfo(name = "path")
+    public String path = "";
+
+    @ColumnInfo(name = "size")
+    public long size;
+
+    @ColumnInfo(name = "updated_at")
+    public long updatedAt;
+
+    // --------------------
+    // CONSTRUCTORS
+    // --------------------
+    public MediaPathEntity() {
+    }
+
+    @Ignore
+    public MediaPathEntity(int accountId, @NonNull String remoteUniqueId,
+                           @NonNull String path, long size, long updatedAt) {
+        this.accountId = accountId;
+        this.remoteUniqueId = remoteUniqueId;
+        this.path = path;
+        this.size = size;
+        this.updatedAt = updatedAt;
+    }
+}
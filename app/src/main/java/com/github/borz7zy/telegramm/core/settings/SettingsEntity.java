@@ -13,4 +13,20 @@ public class SettingsEntity {
 
     @ColumnInfo(name = "current_active_id")
     public Integer currentActiveId;
+
+    // 0 disables hibernation of idle sessions
+    @ColumnInfo(name = "idle_timeout_minutes", defaultValue = "10")
+    public long idleTimeoutMinutes = 10;
+
+    // Only the active account keeps its TDLib client open
+    @ColumnInfo(name = "keep_inactive_closed", defaultValue = "0")
+    public boolean keepInactiveClosed = false;
+
+    // 0 disables the media quota of the whole account
+    @ColumnInfo(name = "media_quota_bytes", defaultValue = "1073741824")
+    public long mediaQuotaBytes = 1024L * 1024 * 1024;
+
+    // Quotas of single file types, "constructor:bytes" pairs separated by commas
+    @ColumnInfo(name = "file_type_quotas")
+    public String fileTypeQuotas;
 }
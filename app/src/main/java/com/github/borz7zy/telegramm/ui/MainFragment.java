@@ -14,9 +14,11 @@ import androidx.fragment.app.FragmentContainerView;
 import androidx.lifecycle.ViewModelProvider;
 
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+import android.widget.PopupMenu;
 import android.widget.TextView;
 
 import com.github.borz7zy.telegramm.AppManager;
@@ -25,6 +27,10 @@ import com.github.borz7zy.telegramm.ui.contacts.ContactsFragment;
 import com.github.borz7zy.telegramm.ui.dialogs.DialogsFragment;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 
+import org.drinkless.tdlib.TdApi;
+
+import java.util.ArrayList;
+
 import eightbitlab.com.blurview.BlurTarget;
 import eightbitlab.com.blurview.BlurView;
 
@@ -42,6 +48,8 @@ public class MainFragment extends Fragment {
     private Fragment dialogsFragment;
     private Fragment contactsFragment;
     private Fragment currentFragment;
+    // Header title of the shown chat list, null for the main one
+    private String chatListTitle;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -78,6 +86,12 @@ public class MainFragment extends Fragment {
 
         mainViewModel.getCurrentTab().observe(getViewLifecycleOwner(), this::switchToFragment);
 
+        headerTitle.setOnClickListener(v -> {
+            if (currentFragment instanceof DialogsFragment dialogs) {
+                showChatListMenu(dialogs);
+            }
+        });
+
         if(savedInstanceState == null){
             mainViewModel.setCurrentTab(R.id.nav_chats);
             bottomNav.setSelectedItemId(R.id.nav_chats);
@@ -158,6 +172,42 @@ public class MainFragment extends Fragment {
         transaction.commit();
 
         currentFragment = target;
+        updateHeaderTitle();
+    }
+
+    /*
+     * Lets the chats tab switch between the main list, the archive and folders.
+     */
+    private void showChatListMenu(DialogsFragment dialogs) {
+        ArrayList<TdApi.ChatList> lists = new ArrayList<>();
+        ArrayList<String> titles = new ArrayList<>();
+
+        lists.add(new TdApi.ChatListMain());
+        titles.add(getString(R.string.chat_list_all));
+        lists.add(new TdApi.ChatListArchive());
+        titles.add(getString(R.string.chat_list_archive));
+        for (TdApi.ChatFolderInfo folder : dialogs.getChatFolders()) {
+            lists.add(new TdApi.ChatListFolder(folder.id));
+            titles.add(folder.name.text.text);
+        }
+
+        PopupMenu menu = new PopupMenu(requireContext(), headerTitle);
+        for (int i = 0; i < titles.size(); ++i) {
+            menu.getMenu().add(Menu.NONE, i, i, titles.get(i));
+        }
+        menu.setOnMenuItemClickListener(item -> {
+            int index = item.getItemId();
+            dialogs.showChatList(lists.get(index));
+            chatListTitle = index == 0 ? null : titles.get(index);
+            updateHeaderTitle();
+            return true;
+        });
+        menu.show();
+    }
+
+    private void updateHeaderTitle() {
+        boolean chats = currentFragment instanceof DialogsFragment;
+        headerTitle.setText(chats && chatListTitle != null ? chatListTitle : getString(R.string.app_name));
     }
 
     private void setupBlur(View view) {
@@ -6,6 +6,8 @@ import androidx.annotation.ColorInt;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import java.util.concurrent.Executor;
+
 import com.google.ux.material.libmonet.dynamiccolor.MaterialDynamicColors;
 import com.google.ux.material.libmonet.hct.Hct;
 import com.google.ux.material.libmonet.scheme.SchemeFidelity;
@@ -14,6 +16,10 @@ public class ThemeEngine {
 
     private final MutableLiveData<Theme> currentTheme = new MutableLiveData<>();
 
+    private Theme latestTheme;
+    private int pendingSeedColor;
+    private boolean pendingNightMode;
+
     public LiveData<Theme> getCurrentTheme() {
         return currentTheme;
     }
@@ -22,11 +28,37 @@ public class ThemeEngine {
         updateTheme(seedColor, isNightMode);
     }
 
+    /*
+     * Generates the scheme on the executor and posts it when ready.
+     * Anyone needing colors earlier can call requireTheme().
+     */
+    public void initThemeAsync(@ColorInt int seedColor, boolean isNightMode, Executor executor) {
+        synchronized (this) {
+            pendingSeedColor = seedColor;
+            pendingNightMode = isNightMode;
+        }
+        executor.execute(() -> currentTheme.postValue(requireTheme()));
+    }
+
     public void updateTheme(@ColorInt int seedColor, boolean isNightMode) {
         Theme newTheme = new Theme(seedColor, isNightMode);
+        synchronized (this) {
+            latestTheme = newTheme;
+        }
         currentTheme.setValue(newTheme);
     }
 
+    /*
+     * Returns the current theme, generating it on the calling thread
+     * if the asynchronous initialization hasn't finished yet.
+     */
+    public synchronized Theme requireTheme() {
+        if (latestTheme == null) {
+            latestTheme = new Theme(pendingSeedColor, pendingNightMode);
+        }
+        return latestTheme;
+    }
+
     public static class Theme {
         public int primaryColor;
         public int onPrimaryColor;
@@ -11,12 +11,16 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 import androidx.paging.PagingDataAdapter;
 import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.signature.ObjectKey;
 import com.github.borz7zy.telegramm.R;
 import com.github.borz7zy.telegramm.ui.model.MessageItem;
 import com.github.borz7zy.telegramm.ui.model.PhotoData;
@@ -38,6 +42,7 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
     private static final int VT_LOADING = 3;
 
     private int chatAvatarFileId = 0;
+    private TdMediaRepository media;
 
     public static final int PAYLOAD_TEXT = 1;
     public static final int PAYLOAD_MEDIA = 2;
@@ -45,9 +50,10 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
     public static final int PAYLOAD_BUTTONS = 8;
 
     private static final int MAX_PHOTO_POOL = 10;
+    // Items on each side of a bound position whose layouts are prepared ahead
+    private static final int LAYOUT_PREFETCH_DISTANCE = 8;
 
-    private Runnable loadMoreListener;
-    private static final int LOAD_MORE_THRESHOLD = 8;
+    private final MessageLayoutCache layoutCache = new MessageLayoutCache();
 
     public interface OnBtnClickListener {
         void onBtnClick(MessageItem item, UiContent.UiButton btn);
@@ -59,10 +65,6 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
         this.btnListener = listener;
     }
 
-    public void setLoadMoreListener(Runnable listener) {
-        this.loadMoreListener = listener;
-    }
-
     public ChatAdapter() {
         super(DIFF);
     }
@@ -103,21 +105,17 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
             return new SystemVH(v);
         }
 
-        if (viewType == VT_OUT) {
-            View v = inf.inflate(R.layout.item_message_out, parent, false);
-            return new VH(v);
-        } else {
-            View v = inf.inflate(R.layout.item_message_in, parent, false);
-            return new VH(v);
+        boolean outgoing = viewType == VT_OUT;
+        View v = inf.inflate(outgoing ? R.layout.item_message_out : R.layout.item_message_in, parent, false);
+        VH vh = new VH(v);
+        if (!layoutCache.hasTextParams(outgoing)) {
+            layoutCache.setTextParams(outgoing, TextViewCompat.getTextMetricsParams(vh.text));
         }
+        return vh;
     }
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        if (position < LOAD_MORE_THRESHOLD && loadMoreListener != null) {
-            loadMoreListener.run();
-        }
-
         MessageItem m = getItem(position);
 
         if (m == null) {
@@ -132,6 +130,57 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
         if (holder instanceof VH h) {
             bindUserMessage(h, m);
         }
+
+        prefetchLayouts(position);
+    }
+
+    /*
+     * Prepares text and album layouts of the items around the bound position
+     * in the background and moves their photos up the download queue,
+     * peek() does not trigger page loads.
+     */
+    private void prefetchLayouts(int position) {
+        int from = Math.max(0, position - LAYOUT_PREFETCH_DISTANCE);
+        int to = Math.min(getItemCount() - 1, position + LAYOUT_PREFETCH_DISTANCE);
+        TdMediaRepository media = this.media;
+        for (int i = from; i <= to; ++i) {
+            if (i == position) continue;
+            MessageItem item = peek(i);
+            if (item != null && !(item.ui instanceof UiContent.System)) {
+                layoutCache.prefetch(item);
+                if (media != null) prefetchPhotos(media, item, this);
+            }
+        }
+    }
+
+    private static void prefetchPhotos(TdMediaRepository media, MessageItem item, Object owner) {
+        for (PhotoData photo : item.photos) {
+            if (photo.fileId != 0 && TextUtils.isEmpty(photo.localPath)) {
+                media.prefetch(photo.fileId, TdMediaRepository.PRIORITY_NEAR, owner);
+            }
+        }
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        layoutCache.clear();
+        TdMediaRepository media = this.media;
+        if (media != null) media.cancelAll(this);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        // Off screen now, but likely to come back while scrolling back
+        TdMediaRepository media = this.media;
+        if (media == null || !(holder instanceof VH h) || h.bound == null) return;
+        for (PhotoData photo : h.bound.photos) {
+            if (photo.fileId != 0) {
+                media.deprioritize(photo.fileId, TdMediaRepository.PRIORITY_NEAR);
+            }
+        }
+        h.bound = null;
     }
 
     private void bindSystemMessage(SystemVH sh, MessageItem m) {
@@ -156,19 +205,10 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
     }
 
     private void bindUserMessage(VH h, MessageItem m) {
-        String text = "";
-        if (m.ui instanceof UiContent.Text t) text = t.text;
-        else if (m.ui instanceof UiContent.Media md) text = md.caption;
-
-        if (TextUtils.isEmpty(text)) {
-            h.text.setVisibility(View.GONE);
-        } else {
-            h.text.setVisibility(View.VISIBLE);
-            h.text.setText(text);
-        }
-
+        h.bound = m;
+        bindText(h, m);
         h.time.setText(m.time);
-        bindImages(h.imageBoardTop, m.photos);
+        bindImages(h.imageBoardTop, m);
         bindIncomingAvatar(h, m);
         bindButtons(h, m);
     }
@@ -239,23 +279,15 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
         }
 
         VH h = (VH) holder;
+        h.bound = item;
 
         if ((mask & PAYLOAD_TEXT) != 0) {
-            String text = "";
-            if (item.ui instanceof UiContent.Text t) text = t.text;
-            else if (item.ui instanceof UiContent.Media md) text = md.caption;
-
-            if (TextUtils.isEmpty(text)) {
-                h.text.setVisibility(View.GONE);
-            } else {
-                h.text.setVisibility(View.VISIBLE);
-                h.text.setText(text);
-            }
+            bindText(h, item);
             h.time.setText(item.time);
         }
 
         if ((mask & PAYLOAD_MEDIA) != 0) {
-            bindImages(h.imageBoardTop, item.photos);
+            bindImages(h.imageBoardTop, item);
         }
 
         if ((mask & PAYLOAD_STATUS) != 0) {
@@ -268,6 +300,16 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
     }
 
 
+    /*
+     * Media of the account the chat belongs to. Until it is set, images
+     * without a local path show their placeholders.
+     */
+    public void setMediaRepository(TdMediaRepository media) {
+        if (this.media == media) return;
+        this.media = media;
+        notifyDataSetChanged();
+    }
+
     public void setChatAvatar(int fileId) {
         if (chatAvatarFileId == fileId) return;
         chatAvatarFileId = fileId;
@@ -288,13 +330,14 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
         }
 
         int fid = pg.stickerFileId;
-        if (fid == 0) return;
+        TdMediaRepository media = this.media;
+        if (fid == 0 || media == null) return;
 
         iv.setTag(fid);
 
         WeakReference<ImageView> weakIv = new WeakReference<>(iv);
 
-        TdMediaRepository.get().getPathOrRequest(fid, path -> {
+        media.getPathOrRequest(fid, TdMediaRepository.PRIORITY_VISIBLE, this, path -> {
             ImageView view = weakIv.get();
             if (view == null) return;
 
@@ -313,8 +356,31 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
         });
     }
 
-    private void bindImages(JustifiedLayout layout, List<PhotoData> photos) {
+    private void bindText(VH h, MessageItem m) {
+        String text = MessageLayoutCache.textOf(m);
+        if (TextUtils.isEmpty(text)) {
+            h.text.setVisibility(View.GONE);
+            return;
+        }
+
+        h.text.setVisibility(View.VISIBLE);
+
+        PrecomputedTextCompat precomputed = layoutCache.getText(m);
+        if (precomputed != null) {
+            try {
+                TextViewCompat.setPrecomputedText(h.text, precomputed);
+                return;
+            } catch (IllegalArgumentException e) {
+                // Text view metrics changed since the layout was prepared
+            }
+        }
+        h.text.setText(text);
+    }
+
+    private void bindImages(JustifiedLayout layout, MessageItem m) {
+        List<PhotoData> photos = m.photos;
         if (photos == null || photos.isEmpty()) {
+            layout.setPrecomputedGeometry(null);
             layout.setVisibility(View.GONE);
             return;
         }
@@ -331,27 +397,25 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
         }
 
         final int photoCount = photos.size();
+        final float density = layout.getResources().getDisplayMetrics().density;
+        MessageLayoutCache.AlbumRows rows = MessageLayoutCache.AlbumRows.forPhotos(photoCount, bubbleWidth, density);
 
-        int targetHeight = (photoCount == 1) ? bubbleWidth : dp(layout, 120);
         Object currentMode = layout.getTag(R.id.tag_layout_mode);
 
-        boolean needLayoutUpdate = (currentMode == null || !currentMode.equals(targetHeight));
+        boolean needLayoutUpdate = (currentMode == null || !currentMode.equals(rows.targetHeightPx));
 
         if (needLayoutUpdate) {
-            layout.setTag(R.id.tag_layout_mode, targetHeight);
-
-            if (photoCount == 1) {
-                layout.setTargetRowHeightPx(bubbleWidth);
-                layout.setRowHeightBoundsPx(dp(layout, 100), dp(layout, 450));
-                layout.setJustifyLastRow(false);
-            } else {
-                layout.setTargetRowHeightPx(dp(layout, 120));
-                layout.setRowHeightBoundsPx(dp(layout, 80), dp(layout, 200));
-                layout.setJustifyLastRow(true);
-            }
-            layout.setSpacingPx(dp(layout,2));
+            layout.setTag(R.id.tag_layout_mode, rows.targetHeightPx);
+            layout.setTargetRowHeightPx(rows.targetHeightPx);
+            layout.setRowHeightBoundsPx(rows.minHeightPx, rows.maxHeightPx);
+            layout.setJustifyLastRow(rows.justifyLastRow);
+            layout.setSpacingPx(rows.spacingPx);
         }
 
+        layoutCache.setAlbumMetrics(bubbleWidth,
+                bubbleWidth - layout.getPaddingLeft() - layout.getPaddingRight(), density);
+        layout.setPrecomputedGeometry(layoutCache.getGeometry(m));
+
         while (layout.getChildCount() < MAX_PHOTO_POOL) {
             ImageView iv = new ImageView(layout.getContext());
             iv.setScaleType(ImageView.ScaleType.CENTER_CROP);
@@ -396,13 +460,18 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
 
             iv.setTag(contentKey);
 
+            TdMediaRepository media = this.media;
             String path = photo.localPath;
-            if (TextUtils.isEmpty(path) && photo.fileId != 0) {
-                path = TdMediaRepository.get().getCachedPath(photo.fileId);
+            if (TextUtils.isEmpty(path) && photo.fileId != 0 && media != null) {
+                path = media.getCachedPath(photo.fileId);
             }
 
             if (!TextUtils.isEmpty(path)) {
                 loadGlideImage(iv, path);
+            } else if (photo.fileId != 0 && media == null) {
+                // Bound again once the repository is set
+                iv.setTag(null);
+                iv.setImageResource(R.drawable.bg_msg_bubble);
             } else if (photo.fileId != 0) {
                 iv.setImageResource(R.drawable.bg_msg_bubble);
 
@@ -410,7 +479,7 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
                 final int reqFid = photo.fileId;
                 final String reqKey = contentKey;
 
-                TdMediaRepository.get().getPathOrRequest(reqFid, p -> {
+                media.getPathOrRequest(reqFid, TdMediaRepository.PRIORITY_VISIBLE, this, p -> {
                     ImageView v = weakImg.get();
                     if (v == null) return;
 
@@ -420,11 +489,35 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
                     if (TextUtils.isEmpty(p)) return;
 
                     v.post(() -> loadGlideImage(v, p));
+                }, (fileId, downloadedSize, expectedSize, partialPath) -> {
+                    if (partialPath == null) return;
+
+                    ImageView v = weakImg.get();
+                    if (v == null || !Objects.equals(v.getTag(), reqKey)) return;
+
+                    loadPartialImage(v, partialPath, downloadedSize);
                 });
             }
         }
     }
 
+    /*
+     * Renders what has arrived of a progressive photo. Partial decodes are
+     * kept out of Glide's caches, so the full file is never served from them.
+     */
+    private void loadPartialImage(ImageView iv, String path, long downloadedSize) {
+        Glide.with(iv)
+                .load(path)
+                .signature(new ObjectKey(path + ":" + downloadedSize))
+                .skipMemoryCache(true)
+                .diskCacheStrategy(DiskCacheStrategy.NONE)
+                .centerCrop()
+                .dontAnimate()
+                .override(iv.getWidth(), iv.getHeight())
+                .placeholder(iv.getDrawable())
+                .into(iv);
+    }
+
     private int getTagId(View v) {
         Object tag = v.getTag();
         return (tag instanceof Integer) ? (Integer) tag : 0;
@@ -453,6 +546,7 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
         final JustifiedLayout imageBoardBottom;
         final ImageView avatar;
         final ViewGroup buttonsContainer;
+        MessageItem bound;
 
         VH(@NonNull View itemView) {
             super(itemView);
@@ -592,11 +686,17 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
 
         if (tag.equals(h.avatar.getTag())) return;
 
-        h.avatar.setTag(tag);
         Glide.with(h.avatar).clear(h.avatar);
         h.avatar.setImageResource(R.drawable.bg_badge);
 
-        String cached = TdMediaRepository.get().getCachedPath(fid);
+        TdMediaRepository media = this.media;
+        if (media == null) {
+            h.avatar.setTag(null);
+            return;
+        }
+        h.avatar.setTag(tag);
+
+        String cached = media.getCachedPath(fid);
         if (!TextUtils.isEmpty(cached)) {
             Glide.with(h.avatar)
                     .load(cached)
@@ -609,7 +709,7 @@ public class ChatAdapter extends PagingDataAdapter<MessageItem, RecyclerView.Vie
 
         WeakReference<ImageView> weakAvatar = new WeakReference<>(h.avatar);
 
-        TdMediaRepository.get().getPathOrRequest(fid, p -> {
+        media.getPathOrRequest(fid, TdMediaRepository.PRIORITY_VISIBLE, this, p -> {
             ImageView iv = weakAvatar.get();
             if (iv == null) return;
 
@@ -39,7 +39,7 @@ import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsAnimationCompat;
 import androidx.core.view.WindowInsetsCompat;
 import androidx.lifecycle.ViewModelProvider;
-import androidx.paging.PagingData;
+import androidx.paging.LoadState;
 import androidx.recyclerview.widget.ConcatAdapter;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -92,6 +92,7 @@ public class ChatFragment extends BaseTelegramDialogFragment {
     private LinearLayoutManager lm;
     private TopLoadingAdapter topLoading;
     private ChatAdapter adapter;
+    private TdMediaRepository media;
     private EditText et;
     private ImageView btnSend;
 
@@ -115,10 +116,8 @@ public class ChatFragment extends BaseTelegramDialogFragment {
     private boolean closing = false;
     private OnBackPressedCallback backCallback;
 
-    private long pendingAnchorId = -1;
-    private int pendingAnchorOffset = 0;
-    private boolean isPaginationInProgress = false;
-    private boolean suppressAnchorRestore = false;
+    private boolean pendingScrollToBottom = false;
+    private long pendingJumpId = 0;
 
     public static ChatFragment newInstance(long chatId, String title) {
         ChatFragment f = new ChatFragment();
@@ -283,14 +282,6 @@ public class ChatFragment extends BaseTelegramDialogFragment {
 
         adapter.setBtnListener((item, btn) -> viewModel.handleUiClick(item.id, btn));
 
-        adapter.setLoadMoreListener(() -> {
-            if (!topLoading.isVisible()) {
-                captureScrollAnchor();
-            }
-            suppressAnchorRestore = true;
-            viewModel.loadMore();
-        });
-
         concat = new ConcatAdapter(
                 new ConcatAdapter.Config.Builder()
                         .setStableIdMode(ConcatAdapter.Config.StableIdMode.NO_STABLE_IDS)
@@ -299,12 +290,21 @@ public class ChatFragment extends BaseTelegramDialogFragment {
                 adapter
         );
 
+        // Older pages are requested by the adapter itself as items near the top get bound
+        adapter.addLoadStateListener(states -> {
+            topLoading.setVisible(states.getPrepend() instanceof LoadState.Loading);
+            return kotlin.Unit.INSTANCE;
+        });
+
         adapter.addOnPagesUpdatedListener(() -> {
-            if (!suppressAnchorRestore && isPaginationInProgress) {
-                handlePaginationRestore();
-                isPaginationInProgress = false;
+            if (pendingJumpId != 0) {
+                applyPendingJump();
+            }
+            if (pendingScrollToBottom) {
+                pendingScrollToBottom = false;
+                scrollToBottomIfNeeded();
             }
-            suppressAnchorRestore = false;
+            reportViewport();
             return kotlin.Unit.INSTANCE;
         });
 
@@ -313,13 +313,9 @@ public class ChatFragment extends BaseTelegramDialogFragment {
 
         rv.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
-                if (!isPaginationInProgress && !topLoading.isVisible()) {
-                    int firstVisible = lm.findFirstVisibleItemPosition();
-                    if (firstVisible != RecyclerView.NO_POSITION && firstVisible <= 2) {
-                        captureScrollAnchor();
-                        viewModel.loadMore();
-                    }
+            public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    reportViewport();
                 }
             }
         });
@@ -329,15 +325,8 @@ public class ChatFragment extends BaseTelegramDialogFragment {
     }
 
     private void observeViewModel() {
-        viewModel.getMessages().observe(getViewLifecycleOwner(), list -> {
-            adapter.submitData(getLifecycle(), PagingData.from(list));
-        });
-
-        viewModel.getTopLoading().observe(getViewLifecycleOwner(), isLoading -> {
-            if (isLoading) {
-                isPaginationInProgress = true;
-            }
-            topLoading.setVisible(isLoading);
+        viewModel.getMessages().observe(getViewLifecycleOwner(), data -> {
+            adapter.submitData(getLifecycle(), data);
         });
 
         viewModel.getChatTitle().observe(getViewLifecycleOwner(), t -> {
@@ -353,23 +342,8 @@ public class ChatFragment extends BaseTelegramDialogFragment {
 
         viewModel.getUiEvents().observe(getViewLifecycleOwner(), event -> {
             if (event instanceof ChatViewModel.UiEvent.ScrollToBottom) {
-                if (adapter.getItemCount() == 0) return;
-
-                int lastVisible = lm.findLastCompletelyVisibleItemPosition();
-                int totalItems = adapter.getItemCount() - 1;
-                int realLastPosition = totalItems + (topLoading.isVisible() ? 1 : 0);
-
-                if (lastVisible >= realLastPosition) {
-                    return;
-                }
-
-                if (lastVisible >= realLastPosition - 1) {
-                    return;
-                }
-
-                rv.post(() -> {
-                    rv.smoothScrollToPosition(realLastPosition);
-                });
+                // The new message shows up with the next pages update
+                pendingScrollToBottom = true;
             }
             else if (event instanceof ChatViewModel.UiEvent.OpenUrl) {
                 String url = ((ChatViewModel.UiEvent.OpenUrl) event).url;
@@ -380,85 +354,64 @@ public class ChatFragment extends BaseTelegramDialogFragment {
                     Toast.makeText(requireContext(), "Error opening link", Toast.LENGTH_SHORT).show();
                 }
             }
-            else if (event instanceof ChatViewModel.UiEvent.PaginationApplied) {
-            }
         });
     }
 
     @Override
     protected void onAuthorized() {
         if (session != null) {
+            media = TdMediaRepository.forSession(session);
+            adapter.setMediaRepository(media);
             viewModel.init(chatId, title, session);
         }
     }
 
-    private void captureScrollAnchor() {
-        if (pendingAnchorId != -1) return;
-
-        int firstPos = lm.findFirstVisibleItemPosition();
-        if (firstPos == RecyclerView.NO_POSITION) return;
-
-        boolean isLoaderVisible = topLoading.isVisible();
-
-        int checkPos = (isLoaderVisible && firstPos == 0) ? 1 : firstPos;
-
-        View child = lm.findViewByPosition(checkPos);
-
-        int adapterIndex = checkPos - (isLoaderVisible ? 1 : 0);
-
-        if (child != null && adapterIndex >= 0 && adapterIndex < adapter.getItemCount()) {
-            List<MessageItem> items = adapter.snapshot().getItems();
-            if (adapterIndex < items.size()) {
-                MessageItem item = items.get(adapterIndex);
-                if (item != null) {
-                    pendingAnchorId = item.id;
-                    pendingAnchorOffset = child.getTop();
-                }
-            }
+    /*
+     * Loads the history around the message and scrolls to it once it is shown.
+     */
+    public void jumpToMessage(long messageId) {
+        int position = adapter.findPositionById(messageId);
+        if (position != -1) {
+            lm.scrollToPositionWithOffset(position + (topLoading.isVisible() ? 1 : 0), 0);
+            return;
         }
+        pendingJumpId = messageId;
+        viewModel.jumpToMessage(messageId);
     }
 
-    private void handlePaginationRestore() {
-        if (pendingAnchorId == -1) return;
-        int newPosInAdapter = findAdapterPositionById(pendingAnchorId);
+    private void reportViewport() {
+        int first = lm.findFirstVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) return;
 
-        if (newPosInAdapter == -1) {
-            rv.scrollToPosition(0);
-            pendingAnchorId = -1;
-            return;
-        }
+        int index = first - (topLoading.isVisible() ? 1 : 0);
+        if (index < 0 || index >= adapter.getItemCount()) return;
 
-        int offsetHeader = topLoading.isVisible() ? 1 : 0;
-        int targetPosition = newPosInAdapter + offsetHeader;
+        MessageItem item = adapter.peek(index);
+        if (item != null) viewModel.onViewportChanged(item.id);
+    }
 
-        if (isAtBottom()) {
-            pendingAnchorId = -1;
-            return;
-        }
+    private void applyPendingJump() {
+        int position = adapter.findPositionById(pendingJumpId);
+        if (position == -1) return;
 
-        lm.scrollToPositionWithOffset(targetPosition, pendingAnchorOffset);
-        pendingAnchorId = -1;
-        pendingAnchorOffset = 0;
+        pendingJumpId = 0;
+        lm.scrollToPositionWithOffset(position + (topLoading.isVisible() ? 1 : 0), 0);
     }
 
-    private boolean isAtBottom() {
-        if (lm == null || rv == null) return false;
+    private void scrollToBottomIfNeeded() {
+        if (adapter.getItemCount() == 0) return;
 
         int lastVisible = lm.findLastCompletelyVisibleItemPosition();
-        if (lastVisible == RecyclerView.NO_POSITION) return false;
+        int totalItems = adapter.getItemCount() - 1;
+        int realLastPosition = totalItems + (topLoading.isVisible() ? 1 : 0);
 
-        int total = concat.getItemCount() - 1;
-        return lastVisible >= total - 1;
-    }
-
-    private int findAdapterPositionById(long id) {
-        List<MessageItem> items = adapter.snapshot().getItems();
-        for (int i = 0; i < items.size(); ++i) {
-            if (items.get(i).id == id) {
-                return i;
-            }
+        if (lastVisible >= realLastPosition - 1) {
+            return;
         }
-        return -1;
+
+        rv.post(() -> {
+            rv.smoothScrollToPosition(realLastPosition);
+        });
     }
 
     private void showTyping(String text) {
@@ -488,14 +441,17 @@ public class ChatFragment extends BaseTelegramDialogFragment {
         final String tag = "chat:" + chatId + ":" + fid;
         ivChatAvatar.setTag(tag);
 
-        String cached = TdMediaRepository.get().getCachedPath(fid);
+        TdMediaRepository media = this.media;
+        if (media == null) return;
+
+        String cached = media.getCachedPath(fid);
         if (!TextUtils.isEmpty(cached)) {
             loadAvatarPath(cached);
             return;
         }
 
         WeakReference<ImageView> refInfo = new WeakReference<>(ivChatAvatar);
-        TdMediaRepository.get().getPathOrRequest(fid, p -> {
+        media.getPathOrRequest(fid, p -> {
             ImageView iv = refInfo.get();
             if (iv == null) return;
             Object cur = iv.getTag();
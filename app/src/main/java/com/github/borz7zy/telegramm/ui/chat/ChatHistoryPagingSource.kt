@@ -0,0 +1,177 @@
+package com.github.borz7zy.telegramm.ui.chat
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import com.github.borz7zy.telegramm.ui.model.MessageItem
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.IOException
+import java.util.function.Consumer
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/*
+ * Pages of chat history keyed by message id, items are in ascending id order.
+ * Prepend loads older messages, append loads newer ones.
+ * A refresh starts from the newest message when the key is null, or from
+ * the jump target when there is one. Other refreshes rebuild the loaded
+ * range from the view model's message store, so they cost no TDLib round
+ * trip and the adapter keeps its scroll position. Only if nothing of it is
+ * in memory the page around the key is loaded again. Live updates do not
+ * refresh at all, the view model maps them over the loaded pages.
+ */
+class ChatHistoryPagingSource(private val loader: Loader) : PagingSource<Long, MessageItem>() {
+
+    private companion object {
+        // Extra requests for a short answer, TDLib first returns what it has locally
+        const val MAX_SHORT_PAGE_RETRIES = 3
+    }
+
+    /*
+     * Loaded messages kept in memory, reachesNewest is set if there is
+     * nothing newer to append.
+     */
+    class CachedPage(val items: List<MessageItem>, val reachesNewest: Boolean)
+
+    /*
+     * Mapped result of one GetChatHistory call. The ids are those of the
+     * oldest and newest message TDLib returned, 0 if it returned none;
+     * album parts merged into another item are counted as well.
+     */
+    class HistoryPage(val items: List<MessageItem>, val oldestId: Long, val newestId: Long)
+
+    interface Loader {
+        /*
+         * Same arguments as TdApi.GetChatHistory. The callback receives
+         * the mapped items in ascending id order, or null on error.
+         */
+        fun load(fromMessageId: Long, offset: Int, limit: Int, callback: Consumer<HistoryPage?>)
+
+        /*
+         * The loaded range around anchorId as kept up to date in memory,
+         * null if it does not cover the anchor anymore.
+         */
+        fun cachedPage(anchorId: Long): CachedPage?
+
+        /*
+         * Extends the loaded range by a page, which may be empty.
+         */
+        fun onPageLoaded(items: List<MessageItem>, reachesNewest: Boolean)
+
+        /*
+         * Message to refresh around, 0 if none. Cleared once taken.
+         */
+        fun takeJumpTarget(): Long
+    }
+
+    override suspend fun load(params: LoadParams<Long>): LoadResult<Long, MessageItem> {
+        val key = params.key ?: 0L
+        val limit = params.loadSize
+
+        return try {
+            when (params) {
+                is LoadParams.Refresh -> {
+                    val cached = if (key == 0L) null else loader.cachedPage(key)
+                    if (cached != null) {
+                        LoadResult.Page(
+                            data = cached.items,
+                            prevKey = cached.items.first().id,
+                            nextKey = if (cached.reachesNewest) null else cached.items.last().id
+                        )
+                    } else if (key == 0L) {
+                        // TDLib often answers the first request with only what it has locally
+                        val newest = fetch(0L, 0, limit)
+                        val older = if (newest.oldestId != 0L && newest.items.size < limit) {
+                            fetchOlder(newest.oldestId, limit - newest.items.size)
+                        } else {
+                            null
+                        }
+                        val items = (older?.items ?: emptyList()) + newest.items
+                        loaded(items, true)
+                        LoadResult.Page(
+                            data = items,
+                            prevKey = when {
+                                newest.oldestId == 0L -> null
+                                older != null -> older.prevKey
+                                else -> newest.oldestId
+                            },
+                            nextKey = null
+                        )
+                    } else {
+                        val page = fetch(key, -limit / 2, limit)
+                        loaded(page.items, false)
+                        LoadResult.Page(
+                            data = page.items,
+                            prevKey = if (page.oldestId == 0L) null else page.oldestId,
+                            nextKey = if (page.newestId == 0L) null else page.newestId
+                        )
+                    }
+                }
+                is LoadParams.Prepend -> {
+                    val older = fetchOlder(key, limit)
+                    loaded(older.items, false)
+                    LoadResult.Page(data = older.items, prevKey = older.prevKey, nextKey = null)
+                }
+                is LoadParams.Append -> {
+                    val page = fetch(key, -limit, limit)
+                    val items = page.items.filter { it.id > key }
+                    // Only TDLib returning nothing newer ends the history
+                    val reachesNewest = page.newestId <= key
+                    loaded(items, reachesNewest)
+                    LoadResult.Page(data = items, prevKey = null, nextKey = if (reachesNewest) null else page.newestId)
+                }
+            }
+        } catch (e: IOException) {
+            LoadResult.Error(e)
+        }
+    }
+
+    private class Older(val items: List<MessageItem>, val prevKey: Long?)
+
+    /*
+     * Messages older than fromId. Short answers are extended from the
+     * oldest message received, up to MAX_SHORT_PAGE_RETRIES more requests;
+     * the history only ends when TDLib returns nothing older.
+     */
+    private suspend fun fetchOlder(fromId: Long, limit: Int): Older {
+        val items = ArrayList<MessageItem>()
+        var from = fromId
+        var requests = 0
+        while (true) {
+            val page = fetch(from, 0, limit + 1)
+            if (page.oldestId == 0L || page.oldestId >= from) {
+                return Older(items, null)
+            }
+
+            items.addAll(0, page.items.filter { it.id < from })
+            from = page.oldestId
+            if (items.size >= limit || ++requests > MAX_SHORT_PAGE_RETRIES) {
+                return Older(items, from)
+            }
+        }
+    }
+
+    override fun getRefreshKey(state: PagingState<Long, MessageItem>): Long? {
+        val jumpTarget = loader.takeJumpTarget()
+        if (jumpTarget != 0L) return jumpTarget
+
+        val anchor = state.anchorPosition ?: return null
+        return state.closestItemToPosition(anchor)?.id
+    }
+
+    private fun loaded(items: List<MessageItem>, reachesNewest: Boolean) {
+        loader.onPageLoaded(items, reachesNewest)
+    }
+
+    private suspend fun fetch(fromMessageId: Long, offset: Int, limit: Int): HistoryPage =
+        suspendCancellableCoroutine { cont ->
+            loader.load(fromMessageId, offset, limit) { page ->
+                if (cont.isActive) {
+                    if (page != null) {
+                        cont.resume(page)
+                    } else {
+                        cont.resumeWithException(IOException("GetChatHistory failed"))
+                    }
+                }
+            }
+        }
+}
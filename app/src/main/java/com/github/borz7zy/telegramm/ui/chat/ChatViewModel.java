@@ -2,18 +2,26 @@ package com.github.borz7zy.telegramm.ui.chat;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
+import androidx.paging.Pager;
+import androidx.paging.PagingConfig;
+import androidx.paging.PagingData;
+import androidx.paging.PagingDataTransforms;
+import androidx.paging.PagingLiveData;
 
+import com.github.borz7zy.telegramm.background.KeyedSerialExecutor;
 import com.github.borz7zy.telegramm.core.accounts.AccountSession;
-import com.github.borz7zy.telegramm.core.accounts.AccountStorage;
 import com.github.borz7zy.telegramm.ui.model.MessageItem;
 import com.github.borz7zy.telegramm.ui.model.PhotoData;
 import com.github.borz7zy.telegramm.utils.Logger;
 import com.github.borz7zy.telegramm.utils.TdMediaRepository;
+import com.github.borz7zy.telegramm.utils.TimeFormatter;
 
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
@@ -25,58 +33,87 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class ChatViewModel extends ViewModel implements Client.ResultHandler {
 
     // --------------------
     // LiveData for UI
     // --------------------
-    private final MutableLiveData<List<MessageItem>> messages = new MutableLiveData<>();
+    private final MediatorLiveData<PagingData<MessageItem>> messages = new MediatorLiveData<>();
     private final MutableLiveData<String> chatTitle = new MutableLiveData<>();
     private final MutableLiveData<TdApi.ChatPhotoInfo> chatAvatar = new MutableLiveData<>();
     private final MutableLiveData<String> typingStatus = new MutableLiveData<>();
-    private final MutableLiveData<Boolean> topLoading = new MutableLiveData<>();
     private final MutableLiveData<UiEvent> uiEvents = new MutableLiveData<>();
 
     // --------------------
     // Internal states
     // --------------------
-    private final Map<Long, MessageItem> byId = new ConcurrentHashMap<>();
+    private final MessageStore byId = new MessageStore();
     private final Map<Long, TdApi.Message> rawMessages = new ConcurrentHashMap<>();
     private final Map<Long, Long> albumGroups = new ConcurrentHashMap<>();
     private final Map<Long, String> userNameCache = new ConcurrentHashMap<>();
+    // User id -> ids of messages whose text depends on that user's name
+    private final Map<Long, Set<Long>> messagesByUser = new ConcurrentHashMap<>();
 
     private final Set<Integer> requestedFiles = ConcurrentHashMap.newKeySet();
 
+    // Every change to the maps above runs on this chat's serial queue
+    private final KeyedSerialExecutor worker = KeyedSerialExecutor.CHAT;
+
     private AccountSession session;
     private long chatId;
     private MessageUiMapper uiMapper;
+    private TdMediaRepository media;
 
-    private boolean loading = false;
-    private boolean hasMore = true;
-    private long oldestId = 0;
+    private static final String TAG = "ChatViewModel";
 
-    private boolean isInitialLoad = true;
-    private int initialLoadRetryCount = 0;
-    private int previousListSize = 0;
     private static final int PAGE_SIZE = 70;
-    private static final int MAX_INITIAL_RETRIES = 3;
+    private static final int PREFETCH_DISTANCE = 20;
+    // Pages further away from the viewport are dropped and loaded again on demand
+    private static final int MAX_LOADED_ITEMS = PAGE_SIZE * 5;
+
+    private boolean pagingStarted = false;
+    private volatile ChatHistoryPagingSource pagingSource;
+    // Latest pages from the pager, before live updates are mapped over them
+    private PagingData<MessageItem> loadedPages;
+    // Ids of the items the current paging source has returned
+    private final ConcurrentSkipListSet<Long> loadedIds = new ConcurrentSkipListSet<>();
+    private final AtomicLong jumpTarget = new AtomicLong();
+
+    // Id range the pager has loaded, rebuilt from byId when updates arrive
+    private final Object pagedLock = new Object();
+    private long pagedFirstId = 0;
+    private long pagedLastId = 0;
+    private boolean pagedReachesNewest = false;
+
+    // Messages kept in byId / rawMessages around the viewport, the rest is evicted
+    private static final int DEFAULT_WINDOW_SIZE = 500;
+    private volatile int maxWindowSize = DEFAULT_WINDOW_SIZE;
+    // Everything at or below / at or above these ids has been evicted at some point
+    private volatile long evictedBelowId = 0;
+    private volatile long evictedAboveId = Long.MAX_VALUE;
+
+    private final AtomicLong evictedMessages = new AtomicLong();
+    private final AtomicLong reloadCount = new AtomicLong();
+    private final AtomicLong totalReloadNanos = new AtomicLong();
+    private volatile long maxReloadNanos = 0;
 
     private static final long BATCH_DELAY_MS = 200;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private final Object batchLock = new Object();
     private boolean updateScheduled = false;
-    private boolean pendingPagination = false;
     private boolean pendingScrollToBottom = false;
 
     // --------------------
     // Getters
     // --------------------
-    public LiveData<List<MessageItem>> getMessages() { return messages; }
+    public LiveData<PagingData<MessageItem>> getMessages() { return messages; }
     public LiveData<String> getChatTitle() { return chatTitle; }
     public LiveData<TdApi.ChatPhotoInfo> getChatAvatar() { return chatAvatar; }
     public LiveData<String> getTypingStatus() { return typingStatus; }
-    public LiveData<Boolean> getTopLoading() { return topLoading; }
     public LiveData<UiEvent> getUiEvents() { return uiEvents; }
 
     // --------------------
@@ -89,46 +126,254 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
             chatTitle.setValue(initialTitle);
         }
 
-        session.addUpdateHandler(this);
+        TdApi.Chat cachedChat = session.getChat(chatId);
+        if (cachedChat != null) {
+            chatTitle.setValue(cachedChat.title);
+            chatAvatar.setValue(cachedChat.photo);
+        }
+
+        session.subscribeChat(chatId, this,
+                TdApi.UpdateNewMessage.CONSTRUCTOR,
+                TdApi.UpdateMessageSendSucceeded.CONSTRUCTOR,
+                TdApi.UpdateDeleteMessages.CONSTRUCTOR,
+                TdApi.UpdateMessageEdited.CONSTRUCTOR,
+                TdApi.UpdateMessageContent.CONSTRUCTOR,
+                TdApi.UpdateChatTitle.CONSTRUCTOR,
+                TdApi.UpdateChatPhoto.CONSTRUCTOR,
+                TdApi.UpdateChatAction.CONSTRUCTOR);
+        session.subscribe(this, TdApi.UpdateUser.CONSTRUCTOR);
+
+        // The chat's own account, which is not necessarily the active one
+        media = TdMediaRepository.forSession(session);
+        uiMapper = new MessageUiMapper(
+                session.getAccountId(),
+                this::resolveUserName,
+                this::onUserLoaded
+        );
+        mainHandler.post(this::startPaging);
+    }
 
-        AccountStorage.getInstance().getCurrentActive(account -> {
-            if (account == null) return;
+    // --------------------
+    // History paging
+    // --------------------
 
-            uiMapper = new MessageUiMapper(
-                    account.getAccountId(),
-                    userNameCache::get,
-                    this::onUserLoaded
-            );
+    private void startPaging() {
+        if (pagingStarted) return;
+        pagingStarted = true;
+
+        Pager<Long, MessageItem> pager = new Pager<>(
+                new PagingConfig(PAGE_SIZE, PREFETCH_DISTANCE, false, PAGE_SIZE, MAX_LOADED_ITEMS),
+                () -> {
+                    ChatHistoryPagingSource source = new ChatHistoryPagingSource(historyLoader);
+                    loadedIds.clear();
+                    pagingSource = source;
+                    return source;
+                });
 
-            TdMediaRepository.get().setCurrentAccountId(account.getAccountId());
-            requestInitialHistory();
+        messages.addSource(PagingLiveData.cachedIn(PagingLiveData.getLiveData(pager), this), data -> {
+            loadedPages = data;
+            messages.setValue(withLiveUpdates(data));
         });
     }
 
-    private void requestInitialHistory() {
-        if (loading || session == null) return;
-        loading = true;
-        hasMore = true;
-        oldestId = 0;
+    /*
+     * Reloads the history around the given message, from memory when it
+     * is still loaded.
+     */
+    public void jumpToMessage(long messageId) {
+        jumpTarget.set(messageId);
+        invalidateHistory();
+    }
+
+    private void invalidateHistory() {
+        ChatHistoryPagingSource source = pagingSource;
+        if (source != null) source.invalidate();
+    }
+
+    private final ChatHistoryPagingSource.Loader historyLoader = new ChatHistoryPagingSource.Loader() {
+        @Override
+        public void load(long fromMessageId, int offset, int limit, Consumer<ChatHistoryPagingSource.HistoryPage> callback) {
+            AccountSession s = session;
+            if (s == null) {
+                callback.accept(null);
+                return;
+            }
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            s.send(new TdApi.GetChatHistory(chatId, fromMessageId, offset, limit, false), result -> {
+                if (result instanceof TdApi.Messages) {
+                    TdApi.Messages msgs = (TdApi.Messages) result;
+                    worker.execute(chatId, () -> {
+                        boolean reload = isReload(msgs);
+                        ChatHistoryPagingSource.HistoryPage page = toPage(msgs);
+                        if (reload) {
+                            recordReload(SystemClock.elapsedRealtimeNanos() - start);
+                        }
+                        callback.accept(page);
+                    });
+                } else {
+                    Logger.LOGE(TAG, "GetChatHistory failed: " + result);
+                    callback.accept(null);
+                }
+            });
+        }
+
+        @Override
+        public ChatHistoryPagingSource.CachedPage cachedPage(long anchorId) {
+            long first;
+            long last;
+            boolean newest;
+            synchronized (pagedLock) {
+                first = pagedFirstId;
+                last = pagedReachesNewest ? Long.MAX_VALUE : pagedLastId;
+                newest = pagedReachesNewest;
+            }
 
-        isInitialLoad = true;
-        initialLoadRetryCount = 0;
-        previousListSize = 0;
+            List<MessageItem> items = first != 0 ? byId.snapshot(first, last) : Collections.<MessageItem>emptyList();
+            if (items.isEmpty() || anchorId < items.get(0).id || anchorId > items.get(items.size() - 1).id) {
+                setPagedRange(0, 0, false);
+                return null;
+            }
 
-        byId.clear();
-        rawMessages.clear();
-        albumGroups.clear();
+            // What the pager holds at most, centered on the anchor
+            if (items.size() > MAX_LOADED_ITEMS) {
+                int at = indexOfId(items, anchorId);
+                int from = Math.max(0, Math.min(at - MAX_LOADED_ITEMS / 2, items.size() - MAX_LOADED_ITEMS));
+                int to = from + MAX_LOADED_ITEMS;
+                newest = newest && to == items.size();
+                items = items.subList(from, to);
+            }
 
-        session.send(new TdApi.GetChatHistory(chatId, 0L, 0, PAGE_SIZE, false), this);
+            setPagedRange(items.get(0).id, items.get(items.size() - 1).id, newest);
+            for (MessageItem item : items) loadedIds.add(item.id);
+            return new ChatHistoryPagingSource.CachedPage(items, newest);
+        }
+
+        @Override
+        public void onPageLoaded(List<MessageItem> items, boolean reachesNewest) {
+            synchronized (pagedLock) {
+                if (!items.isEmpty()) {
+                    long firstId = items.get(0).id;
+                    long lastId = items.get(items.size() - 1).id;
+                    if (pagedFirstId == 0 || firstId < pagedFirstId) pagedFirstId = firstId;
+                    if (lastId > pagedLastId) pagedLastId = lastId;
+                }
+                if (reachesNewest) pagedReachesNewest = true;
+            }
+            for (MessageItem item : items) loadedIds.add(item.id);
+        }
+
+        @Override
+        public long takeJumpTarget() {
+            return jumpTarget.getAndSet(0);
+        }
+    };
+
+    // --------------------
+    // Live updates
+    // --------------------
+
+    /*
+     * Maps the store's current state over the loaded pages, so edits, new
+     * and deleted messages show up without refreshing the paging source.
+     */
+    private PagingData<MessageItem> withLiveUpdates(PagingData<MessageItem> pages) {
+        return PagingDataTransforms.flatMap(pages, r -> worker.execute(chatId, r), this::liveItems);
     }
 
-    public void loadMore() {
-        if (loading || !hasMore || session == null) return;
-        loading = true;
-        topLoading.postValue(true);
+    /*
+     * The latest version of a loaded item followed by the messages that
+     * arrived after it, up to the next loaded item. Nothing if it was deleted,
+     * the loaded version if it was evicted from the window.
+     */
+    private List<MessageItem> liveItems(MessageItem loaded) {
+        MessageItem current = byId.get(loaded.id);
+        if (current == null && (loaded.id < byId.firstId() || loaded.id > byId.lastId())) {
+            current = loaded;
+        }
+        Long next = loadedIds.higher(loaded.id);
+        long to;
+        if (next != null) {
+            to = next - 1;
+        } else {
+            synchronized (pagedLock) {
+                to = pagedReachesNewest ? Long.MAX_VALUE : loaded.id;
+            }
+        }
 
-        long offsetId = oldestId;
-        session.send(new TdApi.GetChatHistory(chatId, offsetId, -1, PAGE_SIZE, false), this);
+        List<MessageItem> arrived = byId.snapshot(loaded.id + 1, to);
+        if (arrived.isEmpty()) {
+            return current != null ? Collections.singletonList(current) : Collections.emptyList();
+        }
+        ArrayList<MessageItem> items = new ArrayList<>(arrived.size() + 1);
+        if (current != null) items.add(current);
+        items.addAll(arrived);
+        return items;
+    }
+
+    /*
+     * True if the messages that arrived after the newest loaded one have
+     * outgrown a page, or there is no loaded item to attach them to.
+     */
+    private boolean liveTailTooLong() {
+        if (loadedIds.isEmpty()) return byId.size() > 0;
+        synchronized (pagedLock) {
+            if (!pagedReachesNewest) return false;
+        }
+        return byId.snapshot(loadedIds.last() + 1, Long.MAX_VALUE).size() > PAGE_SIZE;
+    }
+
+    private void setPagedRange(long firstId, long lastId, boolean reachesNewest) {
+        synchronized (pagedLock) {
+            pagedFirstId = firstId;
+            pagedLastId = lastId;
+            pagedReachesNewest = reachesNewest;
+        }
+    }
+
+    // Position of the first item with id >= the given one
+    private static int indexOfId(List<MessageItem> items, long id) {
+        int lo = 0, hi = items.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (items.get(mid).id < id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Maps a history page, reusing items that are already known and kept
+     * up to date by updates. TDLib returns messages newest first.
+     */
+    private ChatHistoryPagingSource.HistoryPage toPage(TdApi.Messages msgs) {
+        if (msgs.messages == null || msgs.messages.length == 0) {
+            return new ChatHistoryPagingSource.HistoryPage(Collections.emptyList(), 0L, 0L);
+        }
+
+        for (TdApi.Message m : msgs.messages) {
+            if (m == null || m.chatId != chatId) continue;
+            if (!rawMessages.containsKey(m.id)) {
+                processMessageAndPut(m);
+            }
+        }
+
+        ArrayList<MessageItem> page = new ArrayList<>(msgs.messages.length);
+        long oldestId = 0L;
+        long newestId = 0L;
+        for (int i = msgs.messages.length - 1; i >= 0; --i) {
+            TdApi.Message m = msgs.messages[i];
+            if (m == null || m.chatId != chatId) continue;
+            if (oldestId == 0L || m.id < oldestId) oldestId = m.id;
+            if (m.id > newestId) newestId = m.id;
+            // Album parts other than the first one are merged into its item
+            MessageItem item = byId.get(m.id);
+            if (item != null) page.add(item);
+        }
+        return new ChatHistoryPagingSource.HistoryPage(page, oldestId, newestId);
     }
 
     // --------------------
@@ -174,30 +419,135 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
         }
     }
 
+    // --------------------
+    // Message window
+    // --------------------
+
+    /*
+     * Called with the first visible message. Once more than the window size
+     * is cached, messages far from it are evicted; TDLib serves them again
+     * from its local database when they are paged back in.
+     */
+    public void onViewportChanged(long firstVisibleId) {
+        if (firstVisibleId == 0 || byId.size() <= maxWindowSize + PAGE_SIZE) return;
+        worker.execute(chatId, () -> trimWindow(firstVisibleId));
+    }
+
+    private void trimWindow(long firstVisibleId) {
+        int window = maxWindowSize;
+        if (byId.size() <= window + PAGE_SIZE) return;
+
+        long previousFirst = byId.firstId();
+        long previousLast = byId.lastId();
+
+        int evicted = byId.trimAround(firstVisibleId, window / 2, window / 2);
+        if (evicted == 0) return;
+
+        long keptFirst = byId.firstId();
+        long keptLast = byId.lastId();
+        if (keptFirst > previousFirst) {
+            evictedBelowId = Math.max(evictedBelowId, keptFirst - 1);
+        }
+        if (keptLast < previousLast) {
+            evictedAboveId = Math.min(evictedAboveId, keptLast + 1);
+        }
+
+        // Pages rebuilt from memory must not reach past what is still cached
+        synchronized (pagedLock) {
+            if (pagedFirstId != 0 && pagedFirstId < keptFirst) pagedFirstId = keptFirst;
+            if (keptLast < previousLast && (pagedReachesNewest || pagedLastId > keptLast)) {
+                pagedLastId = keptLast;
+                pagedReachesNewest = false;
+            }
+            if (pagedFirstId > pagedLastId) {
+                pagedFirstId = 0;
+                pagedLastId = 0;
+            }
+        }
+
+        loadedIds.headSet(keptFirst).clear();
+        loadedIds.tailSet(keptLast, false).clear();
+
+        rawMessages.values().removeIf(raw -> {
+            if (raw.id >= keptFirst && raw.id <= keptLast) return false;
+            unindexUsers(raw);
+            return true;
+        });
+        albumGroups.values().removeIf(id -> id < keptFirst || id > keptLast);
+        evictedMessages.addAndGet(evicted);
+
+        Logger.LOGD(TAG, "Evicted " + evicted + " messages, window " + byId.size()
+                + ", reloads " + reloadCount.get() + " avg " + getAverageReloadMillis() + " ms");
+    }
+
+    public void setMaxWindowSize(int size) {
+        // Never below what the pager keeps loaded, or visible items would be remapped
+        maxWindowSize = Math.max(MAX_LOADED_ITEMS, size);
+    }
+
+    public int getMaxWindowSize() {
+        return maxWindowSize;
+    }
+
+    public int getWindowSize() {
+        return byId.size();
+    }
+
+    public long getEvictedMessages() {
+        return evictedMessages.get();
+    }
+
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    public long getAverageReloadMillis() {
+        long count = reloadCount.get();
+        return count == 0 ? 0 : totalReloadNanos.get() / count / 1_000_000;
+    }
+
+    public long getMaxReloadMillis() {
+        return maxReloadNanos / 1_000_000;
+    }
+
+    private boolean isReload(TdApi.Messages msgs) {
+        if (msgs.messages == null) return false;
+        long below = evictedBelowId;
+        long above = evictedAboveId;
+        for (TdApi.Message m : msgs.messages) {
+            if (m == null) continue;
+            if ((m.id <= below || m.id >= above) && !rawMessages.containsKey(m.id)) return true;
+        }
+        return false;
+    }
+
+    private void recordReload(long nanos) {
+        reloadCount.incrementAndGet();
+        totalReloadNanos.addAndGet(nanos);
+        if (nanos > maxReloadNanos) maxReloadNanos = nanos;
+    }
+
     @Override
     public void onResult(TdApi.Object object) {
-        if (object instanceof TdApi.Messages) {
-            handleHistory((TdApi.Messages) object);
-        }
-        else if (object instanceof TdApi.UpdateNewMessage) {
+        worker.execute(chatId, () -> handleResult(object));
+    }
+
+    private void handleResult(TdApi.Object object) {
+        if (object instanceof TdApi.UpdateNewMessage) {
             TdApi.Message m = ((TdApi.UpdateNewMessage) object).message;
             if (m != null && m.chatId == chatId) {
                 processMessageAndPut(m);
-                if (m.isOutgoing) {
-                    scheduleUiUpdate(false, true);
-                } else {
-                    scheduleUiUpdate(false, false);
-                }
+                scheduleUiUpdate(m.isOutgoing);
             }
         }
         else if (object instanceof TdApi.UpdateMessageSendSucceeded) {
             TdApi.UpdateMessageSendSucceeded u = (TdApi.UpdateMessageSendSucceeded) object;
             if (u.message != null && u.message.chatId == chatId) {
                 byId.remove(u.oldMessageId);
-                rawMessages.remove(u.oldMessageId);
+                unindexUsers(rawMessages.remove(u.oldMessageId));
 
                 processMessageAndPut(u.message);
-                scheduleUiUpdate(false, true);
+                scheduleUiUpdate(true);
             }
         }
         else if (object instanceof TdApi.UpdateDeleteMessages) {
@@ -205,9 +555,9 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
             if (u.chatId == chatId) {
                 for (long id : u.messageIds) {
                     byId.remove(id);
-                    rawMessages.remove(id);
+                    unindexUsers(rawMessages.remove(id));
                 }
-                scheduleUiUpdate(false, false);
+                scheduleUiUpdate(false);
             }
         }
         else if (object instanceof TdApi.UpdateMessageEdited) {
@@ -223,7 +573,7 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
                 if (m != null) {
                     m.content = u.newContent;
                     processMessageAndPut(m);
-                    scheduleUiUpdate(false, false);
+                    scheduleUiUpdate(false);
                 }
             }
         }
@@ -254,53 +604,9 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
         }
     }
 
-    private void handleHistory(TdApi.Messages msgs) {
-        int count = (msgs == null || msgs.messages == null) ? 0 : msgs.messages.length;
-
-        if (count == 0) {
-            hasMore = false;
-            loading = false;
-            if(isInitialLoad){
-                isInitialLoad = false;
-                scheduleUiUpdate(false, true);
-            }else {
-                topLoading.postValue(false);
-            }
-            return;
-        }
-
-        for (TdApi.Message m : msgs.messages) {
-            if (m == null || m.chatId != chatId) continue;
-            processMessageAndPut(m);
-            if (oldestId == 0 || m.id < oldestId) oldestId = m.id;
-        }
-
-        if (isInitialLoad) {
-            int currentListSize = byId.size();
-            if (count < PAGE_SIZE && initialLoadRetryCount < MAX_INITIAL_RETRIES) {
-                if (currentListSize > previousListSize) {
-                    previousListSize = currentListSize;
-                    ++initialLoadRetryCount;
-
-                    scheduleUiUpdate(false, true);
-
-                    session.send(new TdApi.GetChatHistory(chatId, oldestId, -1, PAGE_SIZE, false), this);
-                    return;
-                }
-            }
-
-            isInitialLoad = false;
-            scheduleUiUpdate(false, true);
-        }
-
-        if(!isInitialLoad){
-            hasMore = oldestId > 1;
-            scheduleUiUpdate(true, false);
-        }
-    }
-
     private void processMessageAndPut(TdApi.Message m) {
         rawMessages.put(m.id, m);
+        indexUsers(m);
         long albumId = m.mediaAlbumId;
         PhotoData photoData = null;
         String caption = "";
@@ -329,7 +635,7 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
                     }
                     if (!alreadyExists) {
                         MessageItem updatedItem = existingItem.withAddedPhoto(photoData, caption);
-                        byId.put(mainMessageId, updatedItem);
+                        byId.put(updatedItem);
                     }
                     return;
                 }
@@ -337,7 +643,7 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
         }
 
         MessageItem newItem = toItem(m);
-        byId.put(m.id, newItem);
+        byId.put(newItem);
         if (albumId != 0) {
             albumGroups.put(albumId, m.id);
         }
@@ -356,8 +662,8 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
                 newUi = cur.ui;
             }
             MessageItem updated = cur.withUi(newUi);
-            byId.put(u.messageId, updated);
-            scheduleUiUpdate(false, false);
+            byId.put(updated);
+            scheduleUiUpdate(false);
         }
     }
 
@@ -367,7 +673,7 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
         }
 
         UiContent ui = uiMapper.map(m);
-        String time = formatTime(m.date);
+        String time = TimeFormatter.formatTime(m.date);
 
         List<PhotoData> photos = new ArrayList<>();
         if (m.content instanceof TdApi.MessagePhoto) {
@@ -382,9 +688,16 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
         );
     }
 
-    private String formatTime(int unixSeconds) {
-        long ms = unixSeconds * 1000L;
-        return new java.text.SimpleDateFormat("HH:mm", java.util.Locale.getDefault()).format(new java.util.Date(ms));
+    private String resolveUserName(long userId) {
+        String name = userNameCache.get(userId);
+        if (name != null) return name;
+
+        TdApi.User user = session != null ? session.getUser(userId) : null;
+        if (user == null) return null;
+
+        name = (user.firstName + " " + user.lastName).trim();
+        userNameCache.put(userId, name);
+        return name;
     }
 
     private void onUserLoaded(TdApi.User user) {
@@ -394,24 +707,77 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
         if (oldName == null || !oldName.equals(fullName)) {
             userNameCache.put(user.id, fullName);
 
-            new Thread(() -> {
+            worker.execute(chatId, () -> {
+                Set<Long> ids = messagesByUser.get(user.id);
+                if (ids == null || uiMapper == null) return;
+
                 boolean needUpdate = false;
-                for (MessageItem item : byId.values()) {
-                    if (item.chatId == user.id) {
-                        TdApi.Message raw = rawMessages.get(item.id);
-                        if (raw != null) {
-                            byId.put(item.id, toItem(raw));
-                            needUpdate = true;
-                        }
+                for (Long id : ids) {
+                    TdApi.Message raw = rawMessages.get(id);
+                    if (raw == null) {
+                        ids.remove(id);
+                        continue;
+                    }
+                    // Album parts are merged into another item, which is indexed as well
+                    MessageItem item = byId.get(id);
+                    if (item != null) {
+                        byId.put(item.withUi(uiMapper.map(raw)));
+                        needUpdate = true;
                     }
                 }
                 if (needUpdate) {
-                    scheduleUiUpdate(false, false);
+                    scheduleUiUpdate(false);
+                }
+            });
+        }
+    }
+
+    // --------------------
+    // Sender index
+    // --------------------
+
+    private void indexUsers(TdApi.Message m) {
+        long senderId = senderUserId(m);
+        if (senderId != 0) {
+            messagesByUser.computeIfAbsent(senderId, k -> ConcurrentHashMap.newKeySet()).add(m.id);
+        }
+        if (m.content instanceof TdApi.MessageChatAddMembers) {
+            long[] members = ((TdApi.MessageChatAddMembers) m.content).memberUserIds;
+            if (members != null) {
+                for (long userId : members) {
+                    messagesByUser.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(m.id);
+                }
+            }
+        }
+    }
+
+    private void unindexUsers(TdApi.Message m) {
+        if (m == null) return;
+        removeFromIndex(senderUserId(m), m.id);
+        if (m.content instanceof TdApi.MessageChatAddMembers) {
+            long[] members = ((TdApi.MessageChatAddMembers) m.content).memberUserIds;
+            if (members != null) {
+                for (long userId : members) {
+                    removeFromIndex(userId, m.id);
                 }
-            }).start();
+            }
         }
     }
 
+    private void removeFromIndex(long userId, long messageId) {
+        if (userId == 0) return;
+        messagesByUser.computeIfPresent(userId, (k, ids) -> {
+            ids.remove(messageId);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private static long senderUserId(TdApi.Message m) {
+        return m.senderId instanceof TdApi.MessageSenderUser
+                ? ((TdApi.MessageSenderUser) m.senderId).userId
+                : 0;
+    }
+
     private void handleTyping(TdApi.UpdateChatAction uca) {
         if (uca.action == null) return;
         mainHandler.post(() -> {
@@ -444,13 +810,14 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
 
         if (TextUtils.isEmpty(localPath) || !completed) {
             if(requestedFiles.add(fileId)){
-                TdMediaRepository.get().getPathOrRequest(fileId, p -> {
+                // Raised once the photo is bound or comes near the viewport
+                media.getPathOrRequest(fileId, TdMediaRepository.PRIORITY_PREFETCH, this, p -> {
                     if (!TextUtils.isEmpty(p)) {
-                        notifyItemChanged(rowMessageId);
+                        worker.execute(chatId, () -> notifyItemChanged(rowMessageId));
                     }
                 });
             }
-            String cached = TdMediaRepository.get().getCachedPath(fileId);
+            String cached = media.getCachedPath(best.photo);
             if (!TextUtils.isEmpty(cached)) localPath = cached;
         }
         return new PhotoData(fileId, localPath, best.width, best.height);
@@ -461,8 +828,8 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
         if (item != null) {
             TdApi.Message raw = rawMessages.get(msgId);
             if (raw != null) {
-                byId.put(msgId, toItem(raw));
-                scheduleUiUpdate(false, false);
+                byId.put(toItem(raw));
+                scheduleUiUpdate(false);
             }
         }
     }
@@ -486,10 +853,9 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
     // UI Update Batching
     // --------------------
 
-    private void scheduleUiUpdate(boolean isPagination, boolean scrollToBottom) {
+    private void scheduleUiUpdate(boolean scrollToBottom) {
         synchronized (batchLock) {
-            if (isPagination) pendingPagination = true;
-            if (scrollToBottom && !isPagination) pendingScrollToBottom = true;
+            if (scrollToBottom) pendingScrollToBottom = true;
 
             if (!updateScheduled) {
                 updateScheduled = true;
@@ -500,46 +866,42 @@ public class ChatViewModel extends ViewModel implements Client.ResultHandler {
 
     private void performBufferedUpdate() {
         boolean doScroll;
-        boolean doPagination;
 
         synchronized (batchLock) {
             doScroll = pendingScrollToBottom;
-            doPagination = pendingPagination;
             pendingScrollToBottom = false;
-            pendingPagination = false;
             updateScheduled = false;
         }
 
-        new Thread(() -> {
-            ArrayList<MessageItem> list = new ArrayList<>(byId.values());
-            Collections.sort(list, (m1, m2) -> Long.compare(m1.id, m2.id));
-
-            messages.postValue(list);
+        PagingData<MessageItem> pages = loadedPages;
+        if (pages != null && !liveTailTooLong()) {
+            messages.setValue(withLiveUpdates(pages));
+        } else {
+            // Loaded pages are rebuilt from the store, the adapter diffs them in place
+            invalidateHistory();
+        }
 
-            if (doPagination) {
-                uiEvents.postValue(new UiEvent.PaginationApplied());
-                topLoading.postValue(false);
-                loading = false;
-            }
-            if (doScroll) {
-                uiEvents.postValue(new UiEvent.ScrollToBottom());
-            }
-        }).start();
+        if (doScroll) {
+            uiEvents.setValue(new UiEvent.ScrollToBottom());
+        }
     }
 
     @Override
     protected void onCleared() {
         super.onCleared();
         if (session != null) {
-            session.removeUpdateHandler(this);
+            session.unsubscribe(this);
             session.send(new TdApi.CloseChat(chatId), null);
         }
+        if (media != null) {
+            // Photos of the chat that are not downloaded yet are no longer needed
+            media.cancelAll(this);
+        }
         mainHandler.removeCallbacksAndMessages(null);
     }
 
     public static abstract class UiEvent {
         public static class ScrollToBottom extends UiEvent {}
-        public static class PaginationApplied extends UiEvent {}
         public static class OpenUrl extends UiEvent {
             public final String url;
             public OpenUrl(String url) { this.url = url; }
@@ -0,0 +1,227 @@
+package com.github.borz7zy.telegramm.ui.chat;
+
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+import androidx.core.text.PrecomputedTextCompat;
+
+import com.github.borz7zy.telegramm.ui.model.MessageItem;
+import com.github.borz7zy.telegramm.ui.model.PhotoData;
+import com.github.borz7zy.telegramm.ui.widget.JustifiedLayout;
+import com.github.borz7zy.telegramm.utils.Logger;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Text and album layouts of messages near the viewport, prepared on a
+ * background thread so binding only has to hand them to the views.
+ * Entries are keyed by message id and are used only while the item's text,
+ * photos, text metrics and album width still match what they were built for;
+ * anything else falls back to the regular main thread layout.
+ */
+final class MessageLayoutCache {
+    private static final String TAG = "MessageLayoutCache";
+    private static final int MAX_ENTRIES = 300;
+
+    private final LruCache<Long, Entry> entries = new LruCache<>(MAX_ENTRIES);
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    // Shared by every chat, so opening chats does not add threads
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MessageLayout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Metrics of the incoming and outgoing text views, set on the main thread
+    private volatile PrecomputedTextCompat.Params inTextParams;
+    private volatile PrecomputedTextCompat.Params outTextParams;
+    private volatile AlbumMetrics albumMetrics;
+
+    void setTextParams(boolean outgoing, PrecomputedTextCompat.Params params) {
+        if (outgoing) {
+            outTextParams = params;
+        } else {
+            inTextParams = params;
+        }
+    }
+
+    boolean hasTextParams(boolean outgoing) {
+        return (outgoing ? outTextParams : inTextParams) != null;
+    }
+
+    void setAlbumMetrics(int bubbleWidth, int contentWidth, float density) {
+        AlbumMetrics current = albumMetrics;
+        if (current != null && current.bubbleWidth == bubbleWidth
+                && current.contentWidth == contentWidth && current.density == density) {
+            return;
+        }
+        albumMetrics = new AlbumMetrics(bubbleWidth, contentWidth, density);
+    }
+
+    @Nullable
+    PrecomputedTextCompat getText(MessageItem item) {
+        Entry entry = entries.get(item.id);
+        if (entry == null || entry.text == null) return null;
+        if (!TextUtils.equals(entry.source, textOf(item))) return null;
+        if (!entry.text.getParams().equals(textParams(item))) return null;
+        return entry.text;
+    }
+
+    @Nullable
+    JustifiedLayout.Geometry getGeometry(MessageItem item) {
+        Entry entry = entries.get(item.id);
+        if (entry == null || entry.geometry == null) return null;
+        if (!Objects.equals(entry.photos, item.photos)) return null;
+        if (!Objects.equals(entry.albumMetrics, albumMetrics)) return null;
+        return entry.geometry;
+    }
+
+    /*
+     * Queues the layouts of the item unless they are cached or already queued.
+     */
+    void prefetch(MessageItem item) {
+        boolean needText = !TextUtils.isEmpty(textOf(item)) && textParams(item) != null
+                && getText(item) == null;
+        boolean needGeometry = !item.photos.isEmpty() && albumMetrics != null
+                && getGeometry(item) == null;
+        if (!needText && !needGeometry) return;
+        if (!pending.add(item.id)) return;
+
+        executor.execute(() -> {
+            try {
+                entries.put(item.id, build(item));
+            } catch (Throwable t) {
+                Logger.LOGE(TAG, "Layout of message " + item.id + " failed", t);
+            } finally {
+                pending.remove(item.id);
+            }
+        });
+    }
+
+    /*
+     * Drops the prepared layouts, e.g. once the chat is no longer shown.
+     */
+    void clear() {
+        entries.evictAll();
+    }
+
+    private Entry build(MessageItem item) {
+        PrecomputedTextCompat text = null;
+        String source = textOf(item);
+        PrecomputedTextCompat.Params params = textParams(item);
+        if (!TextUtils.isEmpty(source) && params != null) {
+            text = PrecomputedTextCompat.create(source, params);
+        }
+
+        JustifiedLayout.Geometry geometry = null;
+        AlbumMetrics metrics = albumMetrics;
+        if (!item.photos.isEmpty() && metrics != null) {
+            geometry = albumGeometry(item.photos, metrics);
+        }
+
+        return new Entry(source, text, item.photos, metrics, geometry);
+    }
+
+    @Nullable
+    private PrecomputedTextCompat.Params textParams(MessageItem item) {
+        return item.outgoing ? outTextParams : inTextParams;
+    }
+
+    // --------------------
+    // Shared with binding
+    // --------------------
+
+    static String textOf(MessageItem item) {
+        if (item.ui instanceof UiContent.Text t) return t.text;
+        if (item.ui instanceof UiContent.Media md) return md.caption;
+        return "";
+    }
+
+    private static JustifiedLayout.Geometry albumGeometry(List<PhotoData> photos, AlbumMetrics metrics) {
+        float[] ratios = new float[photos.size()];
+        for (int i = 0; i < ratios.length; ++i) {
+            ratios[i] = photos.get(i).aspectRatio;
+        }
+
+        AlbumRows rows = AlbumRows.forPhotos(photos.size(), metrics.bubbleWidth, metrics.density);
+        return JustifiedLayout.computeGeometry(ratios, metrics.contentWidth, rows.spacingPx,
+                rows.targetHeightPx, rows.minHeightPx, rows.maxHeightPx, rows.justifyLastRow);
+    }
+
+    /*
+     * Row settings of the photo album layout: a single photo may take the
+     * whole bubble width, several photos are laid out in shorter rows.
+     */
+    static final class AlbumRows {
+        final int targetHeightPx;
+        final int minHeightPx;
+        final int maxHeightPx;
+        final int spacingPx;
+        final boolean justifyLastRow;
+
+        private AlbumRows(int targetHeightPx, int minHeightPx, int maxHeightPx, int spacingPx, boolean justifyLastRow) {
+            this.targetHeightPx = targetHeightPx;
+            this.minHeightPx = minHeightPx;
+            this.maxHeightPx = maxHeightPx;
+            this.spacingPx = spacingPx;
+            this.justifyLastRow = justifyLastRow;
+        }
+
+        static AlbumRows forPhotos(int photoCount, int bubbleWidth, float density) {
+            int spacing = (int) (2 * density);
+            if (photoCount == 1) {
+                return new AlbumRows(bubbleWidth, (int) (100 * density), (int) (450 * density), spacing, false);
+            }
+            return new AlbumRows((int) (120 * density), (int) (80 * density), (int) (200 * density), spacing, true);
+        }
+    }
+
+    private static final class AlbumMetrics {
+        final int bubbleWidth;
+        final int contentWidth;
+        final float density;
+
+        AlbumMetrics(int bubbleWidth, int contentWidth, float density) {
+            this.bubbleWidth = bubbleWidth;
+            this.contentWidth = contentWidth;
+            this.density = density;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof AlbumMetrics that)) return false;
+            return bubbleWidth == that.bubbleWidth
+                    && contentWidth == that.contentWidth
+                    && density == that.density;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bubbleWidth, contentWidth, density);
+        }
+    }
+
+    private static final class Entry {
+        final String source;
+        @Nullable final PrecomputedTextCompat text;
+        final List<PhotoData> photos;
+        @Nullable final AlbumMetrics albumMetrics;
+        @Nullable final JustifiedLayout.Geometry geometry;
+
+        Entry(String source, @Nullable PrecomputedTextCompat text, List<PhotoData> photos,
+              @Nullable AlbumMetrics albumMetrics, @Nullable JustifiedLayout.Geometry geometry) {
+            this.source = source;
+            this.text = text;
+            this.photos = photos;
+            this.albumMetrics = albumMetrics;
+            this.geometry = geometry;
+        }
+    }
+}
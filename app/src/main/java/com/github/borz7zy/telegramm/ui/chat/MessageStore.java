@@ -0,0 +1,292 @@
+package com.github.borz7zy.telegramm.ui.chat;
+
+import androidx.annotation.Nullable;
+
+import com.github.borz7zy.telegramm.ui.model.MessageItem;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/*
+ * Message items of a chat kept ordered by id.
+ * Items are stored in sorted chunks of at most CHUNK_SIZE entries that are
+ * never modified once created: an insert or removal copies only the chunk
+ * it touches, and snapshot() shares all chunks with the store.
+ * Lookups and updates are O(log n) plus the copy of one chunk,
+ * publishing a snapshot is O(n / CHUNK_SIZE). The chat's pages are
+ * rebuilt from snapshots when live updates arrive.
+ */
+final class MessageStore {
+    private static final int CHUNK_SIZE = 64;
+    private static final Chunk[] EMPTY = new Chunk[0];
+
+    private Chunk[] chunks = EMPTY;
+    // Set once a snapshot references the current chunk array
+    private boolean chunksShared = false;
+    private int size = 0;
+
+    synchronized int size() {
+        return size;
+    }
+
+    @Nullable
+    synchronized MessageItem get(long id) {
+        int c = findChunk(id);
+        if (c >= chunks.length) return null;
+
+        Chunk chunk = chunks[c];
+        int i = Arrays.binarySearch(chunk.ids, id);
+        return i >= 0 ? chunk.items[i] : null;
+    }
+
+    /*
+     * Inserts the item or replaces the one with the same id.
+     */
+    synchronized void put(MessageItem item) {
+        if (chunks.length == 0) {
+            setChunks(new Chunk[]{ new Chunk(new long[]{ item.id }, new MessageItem[]{ item }) });
+            size = 1;
+            return;
+        }
+
+        int c = Math.min(findChunk(item.id), chunks.length - 1);
+        Chunk chunk = chunks[c];
+        int i = Arrays.binarySearch(chunk.ids, item.id);
+
+        if (i >= 0) {
+            if (chunk.items[i] == item) return;
+            MessageItem[] items = chunk.items.clone();
+            items[i] = item;
+            replaceChunk(c, new Chunk(chunk.ids, items));
+            return;
+        }
+
+        int at = -i - 1;
+        int n = chunk.ids.length;
+        long[] ids = new long[n + 1];
+        MessageItem[] items = new MessageItem[n + 1];
+        System.arraycopy(chunk.ids, 0, ids, 0, at);
+        System.arraycopy(chunk.items, 0, items, 0, at);
+        ids[at] = item.id;
+        items[at] = item;
+        System.arraycopy(chunk.ids, at, ids, at + 1, n - at);
+        System.arraycopy(chunk.items, at, items, at + 1, n - at);
+        ++size;
+
+        if (ids.length <= CHUNK_SIZE) {
+            replaceChunk(c, new Chunk(ids, items));
+            return;
+        }
+
+        int half = ids.length / 2;
+        Chunk left = new Chunk(Arrays.copyOfRange(ids, 0, half), Arrays.copyOfRange(items, 0, half));
+        Chunk right = new Chunk(Arrays.copyOfRange(ids, half, ids.length), Arrays.copyOfRange(items, half, items.length));
+
+        Chunk[] result = new Chunk[chunks.length + 1];
+        System.arraycopy(chunks, 0, result, 0, c);
+        result[c] = left;
+        result[c + 1] = right;
+        System.arraycopy(chunks, c + 1, result, c + 2, chunks.length - c - 1);
+        setChunks(result);
+    }
+
+    @Nullable
+    synchronized MessageItem remove(long id) {
+        int c = findChunk(id);
+        if (c >= chunks.length) return null;
+
+        Chunk chunk = chunks[c];
+        int i = Arrays.binarySearch(chunk.ids, id);
+        if (i < 0) return null;
+
+        MessageItem removed = chunk.items[i];
+        --size;
+
+        int n = chunk.ids.length;
+        if (n == 1) {
+            Chunk[] result = new Chunk[chunks.length - 1];
+            System.arraycopy(chunks, 0, result, 0, c);
+            System.arraycopy(chunks, c + 1, result, c, chunks.length - c - 1);
+            setChunks(result);
+            return removed;
+        }
+
+        long[] ids = new long[n - 1];
+        MessageItem[] items = new MessageItem[n - 1];
+        System.arraycopy(chunk.ids, 0, ids, 0, i);
+        System.arraycopy(chunk.items, 0, items, 0, i);
+        System.arraycopy(chunk.ids, i + 1, ids, i, n - i - 1);
+        System.arraycopy(chunk.items, i + 1, items, i, n - i - 1);
+        replaceChunk(c, new Chunk(ids, items));
+        return removed;
+    }
+
+    /*
+     * Drops whole chunks lying more than keepBefore items before or keepAfter
+     * items after the given message. Returns the number of evicted items.
+     */
+    synchronized int trimAround(long centerId, int keepBefore, int keepAfter) {
+        if (chunks.length == 0) return 0;
+
+        int center = Math.min(findChunk(centerId), chunks.length - 1);
+
+        int first = center;
+        int before = 0;
+        while (first > 0 && before < keepBefore) {
+            before += chunks[first - 1].ids.length;
+            --first;
+        }
+
+        int last = center;
+        int after = 0;
+        while (last < chunks.length - 1 && after < keepAfter) {
+            after += chunks[last + 1].ids.length;
+            ++last;
+        }
+
+        if (first == 0 && last == chunks.length - 1) return 0;
+
+        int kept = 0;
+        for (int i = first; i <= last; ++i) {
+            kept += chunks[i].ids.length;
+        }
+
+        int evicted = size - kept;
+        setChunks(Arrays.copyOfRange(chunks, first, last + 1));
+        size = kept;
+        return evicted;
+    }
+
+    /*
+     * Smallest stored id, 0 if the store is empty.
+     */
+    synchronized long firstId() {
+        return chunks.length == 0 ? 0 : chunks[0].ids[0];
+    }
+
+    /*
+     * Largest stored id, 0 if the store is empty.
+     */
+    synchronized long lastId() {
+        if (chunks.length == 0) return 0;
+        long[] ids = chunks[chunks.length - 1].ids;
+        return ids[ids.length - 1];
+    }
+
+    synchronized void clear() {
+        setChunks(EMPTY);
+        size = 0;
+    }
+
+    /*
+     * Immutable view of the current messages in ascending id order.
+     * Later changes to the store are not visible through it.
+     */
+    synchronized List<MessageItem> snapshot() {
+        chunksShared = true;
+        return new Snapshot(chunks, size);
+    }
+
+    /*
+     * Same, limited to the messages with fromId <= id <= toId.
+     */
+    synchronized List<MessageItem> snapshot(long fromId, long toId) {
+        if (fromId > toId) return Collections.emptyList();
+        return snapshot().subList(rank(fromId, false), rank(toId, true));
+    }
+
+    // --------------------
+    // Chunk helpers
+    // --------------------
+
+    /*
+     * Index of the first chunk whose last id is >= id, chunks.length if none.
+     */
+    private int findChunk(long id) {
+        int lo = 0, hi = chunks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long[] ids = chunks[mid].ids;
+            if (ids[ids.length - 1] < id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Number of stored ids below id, including id itself when inclusive.
+     */
+    private int rank(long id, boolean inclusive) {
+        int c = findChunk(id);
+        int count = 0;
+        for (int i = 0; i < c; ++i) {
+            count += chunks[i].ids.length;
+        }
+        if (c == chunks.length) return count;
+
+        int i = Arrays.binarySearch(chunks[c].ids, id);
+        if (i < 0) return count - i - 1;
+        return count + (inclusive ? i + 1 : i);
+    }
+
+    private void replaceChunk(int index, Chunk chunk) {
+        if (chunksShared) {
+            chunks = chunks.clone();
+            chunksShared = false;
+        }
+        chunks[index] = chunk;
+    }
+
+    private void setChunks(Chunk[] newChunks) {
+        chunks = newChunks;
+        chunksShared = false;
+    }
+
+    private static final class Chunk {
+        final long[] ids;
+        final MessageItem[] items;
+
+        Chunk(long[] ids, MessageItem[] items) {
+            this.ids = ids;
+            this.items = items;
+        }
+    }
+
+    private static final class Snapshot extends AbstractList<MessageItem> implements RandomAccess {
+        private final Chunk[] chunks;
+        private final int[] starts;
+        private final int size;
+
+        Snapshot(Chunk[] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+            this.starts = new int[chunks.length];
+            int offset = 0;
+            for (int i = 0; i < chunks.length; ++i) {
+                starts[i] = offset;
+                offset += chunks[i].ids.length;
+            }
+        }
+
+        @Override
+        public MessageItem get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            int c = Arrays.binarySearch(starts, index);
+            if (c < 0) c = -c - 2;
+            return chunks[c].items[index - starts[c]];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
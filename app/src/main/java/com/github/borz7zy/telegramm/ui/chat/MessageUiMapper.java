@@ -110,6 +110,14 @@ public final class MessageUiMapper {
         }
 
         if (session != null) {
+            TdApi.User cached = session.getUser(userId);
+            if (cached != null) {
+                if (onUserLoaded != null) {
+                    onUserLoaded.accept(cached);
+                }
+                return;
+            }
+
             pendingUserRequests.add(userId);
             session.send(new TdApi.GetUser(userId), object -> {
                 pendingUserRequests.remove(userId);
@@ -201,16 +209,18 @@ public final class MessageUiMapper {
             SystemMessages.PremiumGift gift = new SystemMessages.PremiumGift();
             gift.comment = (x.text != null && x.text.text != null && !x.text.text.isEmpty()) ? x.text.text : "";
 
-            int stickerFileId = 0;
+            TdApi.File stickerFile = null;
             if (x.sticker != null) {
                 if (x.sticker.thumbnail != null && x.sticker.thumbnail.file != null) {
-                    stickerFileId = x.sticker.thumbnail.file.id;
+                    stickerFile = x.sticker.thumbnail.file;
                 } else if (x.sticker.sticker != null) {
-                    stickerFileId = x.sticker.sticker.id;
+                    stickerFile = x.sticker.sticker;
                 }
             }
-            gift.stickerFileId = stickerFileId;
-            gift.stickerPath = TdMediaRepository.get().getCachedPath(stickerFileId);
+            gift.stickerFileId = stickerFile != null ? stickerFile.id : 0;
+            gift.stickerPath = accountId != 0
+                    ? TdMediaRepository.forAccount((int) accountId).getCachedPath(stickerFile)
+                    : null;
 
             String senderName = getUserNameOrRequest(senderId);
             if (TextUtils.isEmpty(senderName)) {
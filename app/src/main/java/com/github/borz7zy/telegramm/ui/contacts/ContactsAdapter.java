@@ -14,6 +14,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.request.RequestOptions;
+import com.github.borz7zy.telegramm.AppManager;
 import com.github.borz7zy.telegramm.R;
 import com.github.borz7zy.telegramm.ui.ThemeEngine;
 import com.github.borz7zy.telegramm.ui.model.ContactItem;
@@ -30,6 +31,15 @@ public class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.VH> {
         this.theme = theme;
     }
 
+    // Media of the account whose contacts are shown, null until its session is ready
+    private TdMediaRepository media;
+
+    public void setMediaRepository(TdMediaRepository media){
+        if (this.media == media) return;
+        this.media = media;
+        notifyDataSetChanged();
+    }
+
     public interface OnContactClickListener{
         void onContactClick(ContactItem item);
     }
@@ -73,6 +83,10 @@ public class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.VH> {
             if (clickListener != null) clickListener.onContactClick(item);
         });
 
+        if (theme == null) {
+            theme = AppManager.getInstance().getThemeEngine().requireTheme();
+        }
+
         int nameColor = theme.onSurfaceColor;
         int statusColor = theme.onSecondaryContainerColor;
         int badgeColor = theme.primaryColor;
@@ -83,9 +97,20 @@ public class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.VH> {
         h.contactLastOnlineTime.setText(item.lastOnline != null ? item.lastOnline : ""); // TODO
         h.contactLastOnlineTime.setTextColor(statusColor);
 
+        h.avatarFileId = item.avatarFileId;
         bindAvatar(h.avatar, item.avatarFileId, item.avatarPath, badgeColor);
     }
 
+    @Override
+    public void onViewRecycled(@NonNull VH h) {
+        super.onViewRecycled(h);
+        // Off screen now, but likely to come back while scrolling back
+        if (media != null && h.avatarFileId != 0) {
+            media.deprioritize(h.avatarFileId, TdMediaRepository.PRIORITY_NEAR);
+        }
+        h.avatarFileId = 0;
+    }
+
     private void bindAvatar(ImageView iv, int fileId, String pathFromModel, int badgeColor) {
         if (iv == null) return;
 
@@ -99,9 +124,10 @@ public class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.VH> {
             return;
         }
 
-        String path = !TextUtils.isEmpty(pathFromModel)
+        TdMediaRepository media = this.media;
+        String path = !TextUtils.isEmpty(pathFromModel) || media == null
                 ? pathFromModel
-                : TdMediaRepository.get().getCachedPath(fileId);
+                : media.getCachedPath(fileId);
 
         if (!TextUtils.isEmpty(path)) {
             Glide.with(iv)
@@ -113,7 +139,12 @@ public class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.VH> {
             return;
         }
 
-        TdMediaRepository.get().getPathOrRequest(fileId, p -> {
+        if (media == null) {
+            iv.setImageDrawable(placeholder);
+            return;
+        }
+
+        media.getPathOrRequest(fileId, p -> {
             if (TextUtils.isEmpty(p)) return;
             Glide.with(iv)
                     .load(p)
@@ -127,6 +158,7 @@ public class ContactsAdapter extends RecyclerView.Adapter<ContactsAdapter.VH> {
     static class VH extends RecyclerView.ViewHolder {
         final TextView contactName, contactLastOnlineTime;
         final ImageView avatar;
+        int avatarFileId;
 
         VH(@NonNull View itemView){
             super(itemView);
@@ -88,10 +88,13 @@ public class ContactsFragment extends BaseTelegramFragment implements Client.Res
 
             currentSession = AccountManager.getInstance().getSession(account.getAccountId());
 
-            TdMediaRepository.get().setCurrentAccountId(account.getAccountId());
-
             if (currentSession != null) {
-                currentSession.addUpdateHandler(this);
+                TdMediaRepository media = TdMediaRepository.forSession(currentSession);
+                mainHandler.post(() -> adapter.setMediaRepository(media));
+
+                currentSession.subscribe(this,
+                        TdApi.UpdateUser.CONSTRUCTOR,
+                        TdApi.UpdateUserStatus.CONSTRUCTOR);
 
                 loadContacts();
             }
@@ -106,7 +109,7 @@ public class ContactsFragment extends BaseTelegramFragment implements Client.Res
     public void onDestroyView() {
         super.onDestroyView();
         if (currentSession != null) {
-            currentSession.removeUpdateHandler(this);
+            currentSession.unsubscribe(this);
         }
         mainHandler.removeCallbacksAndMessages(null);
     }
@@ -115,9 +118,24 @@ public class ContactsFragment extends BaseTelegramFragment implements Client.Res
     public void onResult(TdApi.Object object) {
         if (object instanceof TdApi.Users) {
             TdApi.Users users = (TdApi.Users) object;
+            List<TdApi.GetUser> requests = new ArrayList<>();
             for (long userId : users.userIds) {
-                currentSession.send(new TdApi.GetUser(userId), this);
+                TdApi.User cached = currentSession.getUser(userId);
+                if (cached != null) {
+                    putUser(cached);
+                } else {
+                    requests.add(new TdApi.GetUser(userId));
+                }
             }
+
+            currentSession.sendBatch(requests, (results, errors) -> {
+                for (TdApi.Object result : results) {
+                    if (result instanceof TdApi.User) {
+                        putUser((TdApi.User) result);
+                    }
+                }
+                refreshList();
+            });
         }
 
         else if (object instanceof TdApi.User) {
@@ -131,12 +149,22 @@ public class ContactsFragment extends BaseTelegramFragment implements Client.Res
         else if (object instanceof TdApi.UpdateUserStatus) {
             TdApi.UpdateUserStatus update = (TdApi.UpdateUserStatus) object;
             if (contactsMap.containsKey(update.userId)) {
-                currentSession.send(new TdApi.GetUser(update.userId), this);
+                TdApi.User cached = currentSession.getUser(update.userId);
+                if (cached != null) {
+                    updateUser(cached);
+                } else {
+                    currentSession.send(new TdApi.GetUser(update.userId), this);
+                }
             }
         }
     }
 
     private void updateUser(TdApi.User user) {
+        putUser(user);
+        refreshList();
+    }
+
+    private void putUser(TdApi.User user) {
 //        if (user.type instanceof TdApi.UserTypeDeleted) return; // SKIP 'Deleted Account'
 
         long id = user.id;
@@ -151,15 +179,15 @@ public class ContactsFragment extends BaseTelegramFragment implements Client.Res
 
         if (user.profilePhoto != null && user.profilePhoto.small != null) {
             avatarId = user.profilePhoto.small.id;
-            if (user.profilePhoto.small.local != null) {
-                avatarPath = user.profilePhoto.small.local.path;
-            }
+            AccountSession session = currentSession;
+            avatarPath = session != null
+                    ? TdMediaRepository.forSession(session).getCachedPath(user.profilePhoto.small)
+                    : null;
         }
 
         ContactItem item = new ContactItem(id, name, lastOnline, avatarId, avatarPath);
 
         contactsMap.put(id, item);
-        refreshList();
     }
 
     private String getUserStatusString(TdApi.UserStatus status) {
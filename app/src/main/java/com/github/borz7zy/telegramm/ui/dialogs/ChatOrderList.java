@@ -0,0 +1,348 @@
+package com.github.borz7zy.telegramm.ui.dialogs;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.github.borz7zy.telegramm.ui.model.DialogItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/*
+ * Dialogs in display order: pinned chats first (in the local pinned order
+ * if one is set, then by chat order), then everything else by descending
+ * chat order, ties broken by chat id.
+ * Backed by a treap whose nodes know their subtree size, so inserting,
+ * removing and looking up a dialog or its position are all O(log n).
+ * Not thread-safe, used on the main thread only.
+ */
+final class ChatOrderList {
+    private final HashMap<Long, DialogItem> byId = new HashMap<>();
+    private final Random random = new Random();
+    private Map<Long, Integer> pinnedIndex = Collections.emptyMap();
+    private Node root;
+
+    // Results of split(), valid right after the call
+    private Node splitLeft;
+    private Node splitRight;
+
+    int size() {
+        return size(root);
+    }
+
+    DialogItem get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
+        Node n = root;
+        while (true) {
+            int leftSize = size(n.left);
+            if (index < leftSize) {
+                n = n.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                n = n.right;
+            } else {
+                return n.item;
+            }
+        }
+    }
+
+    @Nullable
+    DialogItem find(long chatId) {
+        return byId.get(chatId);
+    }
+
+    /*
+     * Position of the stored dialog of the chat, -1 if there is none.
+     */
+    int indexOf(long chatId) {
+        DialogItem item = byId.get(chatId);
+        return item == null ? -1 : rank(item);
+    }
+
+    /*
+     * Adds a dialog for a chat that is not in the list, returns its position.
+     */
+    int insert(DialogItem item) {
+        if (byId.put(item.chatId, item) != null) {
+            throw new IllegalStateException("Chat " + item.chatId + " is already in the list");
+        }
+        split(root, item);
+        root = merge(merge(splitLeft, new Node(item, random.nextInt())), splitRight);
+        return rank(item);
+    }
+
+    /*
+     * Removes the dialog of the chat, returns the position it had or -1.
+     */
+    int remove(long chatId) {
+        DialogItem item = byId.remove(chatId);
+        if (item == null) return -1;
+
+        int index = rank(item);
+        root = remove(root, item);
+        return index;
+    }
+
+    /*
+     * Puts the dialog in place of the stored one of the same chat if both
+     * sort the same, returns the position or -1 if the dialog has to move.
+     */
+    int replaceInPlace(DialogItem item) {
+        DialogItem old = byId.get(item.chatId);
+        if (old == null || compare(old, item) != 0) return -1;
+
+        int index = 0;
+        Node n = root;
+        while (n != null) {
+            int c = compare(old, n.item);
+            if (c < 0) {
+                n = n.left;
+            } else if (c > 0) {
+                index += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n.item = item;
+                byId.put(item.chatId, item);
+                return index + size(n.left);
+            }
+        }
+        throw new IllegalStateException("Chat " + item.chatId + " is missing from the tree");
+    }
+
+    /*
+     * Applies the latest dialog of one chat, null removes it, and reports the
+     * exact insert, remove, move or change to the callback if there is one.
+     */
+    void update(long chatId, @Nullable DialogItem item, @Nullable ListUpdateCallback callback) {
+        DialogItem old = byId.get(chatId);
+        if (old == item) return;
+
+        if (old == null) {
+            int pos = insert(item);
+            if (callback != null) callback.onInserted(pos, 1);
+            return;
+        }
+
+        if (item == null) {
+            int pos = remove(chatId);
+            if (callback != null) callback.onRemoved(pos, 1);
+            return;
+        }
+
+        boolean changed = !sameContents(old, item);
+
+        int pos = replaceInPlace(item);
+        if (pos >= 0) {
+            if (callback != null && changed) callback.onChanged(pos, 1, null);
+            return;
+        }
+
+        int from = remove(chatId);
+        int to = insert(item);
+        if (callback == null) return;
+        if (from != to) callback.onMoved(from, to);
+        if (changed) callback.onChanged(to, 1, null);
+    }
+
+    private static boolean sameContents(DialogItem a, DialogItem b) {
+        return Objects.equals(a.name, b.name)
+                && Objects.equals(a.text, b.text)
+                && Objects.equals(a.time, b.time)
+                && a.unread == b.unread
+                && a.isTyping == b.isTyping
+                && a.hydrated == b.hydrated
+                && a.avatarFileId == b.avatarFileId
+                && Objects.equals(a.avatarPath, b.avatarPath);
+    }
+
+    /*
+     * Local order of pinned chats, e.g. after drag and drop. Pinned chats not
+     * in the list follow the listed ones. Only the pinned dialogs are re-sorted.
+     */
+    void setPinnedOrder(List<Long> chatIds) {
+        HashMap<Long, Integer> index = new HashMap<>();
+        for (int i = 0; i < chatIds.size(); ++i) {
+            index.put(chatIds.get(i), i);
+        }
+        resortPinned(index);
+    }
+
+    /*
+     * Drops the local pinned order once the server has it, pinned dialogs
+     * go back to sorting by chat order. A changed order is reported as a
+     * change of the pinned range.
+     */
+    void clearPinnedOrder(@Nullable ListUpdateCallback callback) {
+        if (pinnedIndex.isEmpty()) return;
+
+        List<DialogItem> before = resortPinned(Collections.emptyMap());
+        if (callback == null) return;
+        for (int i = 0; i < before.size(); ++i) {
+            if (get(i) != before.get(i)) {
+                callback.onChanged(0, before.size(), null);
+                return;
+            }
+        }
+    }
+
+    List<Long> getPinnedIds() {
+        ArrayList<Long> res = new ArrayList<>();
+        for (DialogItem item : pinnedItems()) {
+            res.add(item.chatId);
+        }
+        return res;
+    }
+
+    /*
+     * Re-sorts the pinned dialogs with the given local order, returns them
+     * in the order they had before.
+     */
+    private List<DialogItem> resortPinned(Map<Long, Integer> index) {
+        List<DialogItem> pinned = pinnedItems();
+
+        // Removal has to use the old order
+        for (DialogItem item : pinned) {
+            root = remove(root, item);
+        }
+
+        pinnedIndex = index;
+
+        for (DialogItem item : pinned) {
+            split(root, item);
+            root = merge(merge(splitLeft, new Node(item, random.nextInt())), splitRight);
+        }
+        return pinned;
+    }
+
+    private List<DialogItem> pinnedItems() {
+        ArrayList<DialogItem> pinned = new ArrayList<>();
+        int count = size();
+        for (int i = 0; i < count; ++i) {
+            DialogItem item = get(i);
+            if (!item.isPinned) break;
+            pinned.add(item);
+        }
+        return pinned;
+    }
+
+    void clear() {
+        byId.clear();
+        root = null;
+    }
+
+    int compare(DialogItem a, DialogItem b) {
+        if (a.isPinned != b.isPinned) return a.isPinned ? -1 : 1;
+
+        if (a.isPinned) {
+            Integer ia = pinnedIndex.get(a.chatId);
+            Integer ib = pinnedIndex.get(b.chatId);
+            if (ia != null || ib != null) {
+                if (ia == null) return 1;
+                if (ib == null) return -1;
+                if (!ia.equals(ib)) return Integer.compare(ia, ib);
+            }
+        }
+
+        int c = Long.compare(b.order, a.order);
+        if (c != 0) return c;
+        return Long.compare(b.chatId, a.chatId);
+    }
+
+    // --------------------
+    // Treap helpers
+    // --------------------
+
+    private int rank(DialogItem item) {
+        int index = 0;
+        Node n = root;
+        while (n != null) {
+            int c = compare(item, n.item);
+            if (c < 0) {
+                n = n.left;
+            } else if (c > 0) {
+                index += size(n.left) + 1;
+                n = n.right;
+            } else {
+                return index + size(n.left);
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Splits into nodes ordered before key (splitLeft) and the rest (splitRight).
+     */
+    private void split(Node n, DialogItem key) {
+        if (n == null) {
+            splitLeft = null;
+            splitRight = null;
+            return;
+        }
+        if (compare(n.item, key) < 0) {
+            split(n.right, key);
+            n.right = splitLeft;
+            n.update();
+            splitLeft = n;
+        } else {
+            split(n.left, key);
+            n.left = splitRight;
+            n.update();
+            splitRight = n;
+        }
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.update();
+        return b;
+    }
+
+    private Node remove(Node n, DialogItem key) {
+        if (n == null) return null;
+        int c = compare(key, n.item);
+        if (c == 0) return merge(n.left, n.right);
+
+        if (c < 0) {
+            n.left = remove(n.left, key);
+        } else {
+            n.right = remove(n.right, key);
+        }
+        n.update();
+        return n;
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static final class Node {
+        DialogItem item;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(DialogItem item, int priority) {
+            this.item = item;
+            this.priority = priority;
+        }
+
+        void update() {
+            size = 1 + size(left) + size(right);
+        }
+    }
+}
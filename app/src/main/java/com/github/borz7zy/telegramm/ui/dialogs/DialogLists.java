@@ -0,0 +1,148 @@
+package com.github.borz7zy.telegramm.ui.dialogs;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.github.borz7zy.telegramm.core.accounts.AccountSession;
+import com.github.borz7zy.telegramm.ui.model.DialogItem;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Dialogs of every chat list of the account (main, archive, each folder)
+ * as ordered views over one shared set of dialog items.
+ * Items are stored once per chat, their order and pin state are not used:
+ * each view holds a copy positioned by the chat's position in that list,
+ * taken from the session's chat store when the chat is applied.
+ * A changed chat is applied to all views at once, so switching lists
+ * only swaps the adapter's view and never refetches.
+ */
+final class DialogLists {
+    static final String MAIN = "main";
+    static final String ARCHIVE = "archive";
+
+    private final ConcurrentHashMap<Long, DialogItem> dialogs = new ConcurrentHashMap<>();
+    // Chats changed since they were last applied to the views
+    private final Set<Long> dirtyChats = ConcurrentHashMap.newKeySet();
+
+    // Only touched on the main thread
+    private final HashMap<String, ChatOrderList> views = new HashMap<>();
+
+    static String keyOf(TdApi.ChatList list) {
+        if (list instanceof TdApi.ChatListArchive) return ARCHIVE;
+        if (list instanceof TdApi.ChatListFolder folder) return "folder:" + folder.chatFolderId;
+        return MAIN;
+    }
+
+    // --------------------
+    // Any thread
+    // --------------------
+
+    @Nullable
+    DialogItem get(long chatId) {
+        return dialogs.get(chatId);
+    }
+
+    boolean contains(long chatId) {
+        return dialogs.containsKey(chatId);
+    }
+
+    Collection<DialogItem> values() {
+        return dialogs.values();
+    }
+
+    void put(DialogItem item) {
+        dialogs.put(item.chatId, item);
+        dirtyChats.add(item.chatId);
+    }
+
+    /*
+     * Replaces the item only if it is still the expected one. With markDirty
+     * unset the views keep their copies, e.g. when the adapter already shows
+     * the new item.
+     */
+    boolean replace(DialogItem expected, DialogItem item, boolean markDirty) {
+        if (!dialogs.replace(item.chatId, expected, item)) return false;
+        if (markDirty) dirtyChats.add(item.chatId);
+        return true;
+    }
+
+    /*
+     * The chat moved within or between lists.
+     */
+    void markDirty(long chatId) {
+        dirtyChats.add(chatId);
+    }
+
+    int dirtyCount() {
+        return dirtyChats.size();
+    }
+
+    // --------------------
+    // Main thread
+    // --------------------
+
+    ChatOrderList view(String key) {
+        ChatOrderList view = views.get(key);
+        if (view == null) {
+            view = new ChatOrderList();
+            views.put(key, view);
+        }
+        return view;
+    }
+
+    /*
+     * Applies every dirty chat to all views, a view is created for each list
+     * a chat shows up in. Only changes of the active view are reported.
+     */
+    void applyDirty(AccountSession session, String activeKey, @Nullable ListUpdateCallback activeCallback) {
+        HashSet<String> keys = new HashSet<>();
+
+        Iterator<Long> it = dirtyChats.iterator();
+        while (it.hasNext()) {
+            long chatId = it.next();
+            // Removed before reading, so a concurrent change marks the chat again
+            it.remove();
+
+            DialogItem item = dialogs.get(chatId);
+            Map<String, TdApi.ChatPosition> positions = item != null
+                    ? positionsOf(session, chatId)
+                    : null;
+
+            keys.clear();
+            keys.addAll(views.keySet());
+            if (positions != null) keys.addAll(positions.keySet());
+
+            for (String key : keys) {
+                TdApi.ChatPosition position = positions != null ? positions.get(key) : null;
+                DialogItem copy = position != null && position.order != 0
+                        ? item.copyWithOrderPinned(position.order, position.isPinned)
+                        : null;
+                view(key).update(chatId, copy, key.equals(activeKey) ? activeCallback : null);
+            }
+        }
+    }
+
+    @Nullable
+    private static Map<String, TdApi.ChatPosition> positionsOf(AccountSession session, long chatId) {
+        TdApi.Chat chat = session.getChat(chatId);
+        if (chat == null) return null;
+
+        TdApi.ChatPosition[] positions = chat.positions;
+        if (positions == null || positions.length == 0) return null;
+
+        HashMap<String, TdApi.ChatPosition> result = new HashMap<>();
+        for (TdApi.ChatPosition position : positions) {
+            result.put(keyOf(position.list), position);
+        }
+        return result;
+    }
+}
@@ -16,11 +16,13 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
-import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.ListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.request.RequestOptions;
+import com.github.borz7zy.telegramm.AppManager;
 import com.github.borz7zy.telegramm.R;
 import com.github.borz7zy.telegramm.ui.ThemeEngine;
 import com.github.borz7zy.telegramm.ui.model.DialogItem;
@@ -42,6 +44,20 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
         void onStartDrag(RecyclerView.ViewHolder vh);
     }
 
+    public interface Hydrator {
+        /*
+         * Full item for a summary item about to be shown, or the item
+         * itself if it cannot be hydrated yet. Called on the main thread.
+         */
+        DialogItem hydrate(DialogItem item);
+    }
+
+    private Hydrator hydrator;
+
+    public void setHydrator(Hydrator hydrator) {
+        this.hydrator = hydrator;
+    }
+
     private OnDialogClickListener clickListener;
     private OnStartDragListener dragListener;
 
@@ -53,13 +69,24 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
         dragListener = l;
     }
 
+    // Media of the account whose dialogs are shown, null until its session is ready
+    private TdMediaRepository media;
+
+    public void setMediaRepository(TdMediaRepository media){
+        if (this.media == media) return;
+        this.media = media;
+        notifyDataSetChanged();
+    }
+
     public void setTheme(ThemeEngine.Theme theme){
         if (theme == null) throw new IllegalArgumentException("Theme cannot be null!");
         this.theme = theme;
         notifyDataSetChanged();
     }
 
-    private final ArrayList<DialogItem> items = new ArrayList<>();
+    // Only touched on the main thread
+    private ChatOrderList items = new ChatOrderList();
+    private final ListUpdateCallback updateCallback = new AdapterListUpdateCallback(this);
 
     public DialogItem getItem(int position){
         return items.get(position);
@@ -79,63 +106,43 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
         setHasStableIds(true);
     }
 
-    // DiffUtil
-    public void submitList(List<DialogItem> newList){
-        final ArrayList<DialogItem> old = new ArrayList<>(items);
-
-        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback(){
-            @Override
-            public int getOldListSize(){
-                return old.size();
-            }
-
-            @Override
-            public int getNewListSize(){
-                return newList.size();
-            }
+    public int findPosition(long chatId){
+        return items.indexOf(chatId);
+    }
 
-            @Override
-            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
-                return old.get(oldItemPosition).chatId == newList.get(newItemPosition).chatId;
-            }
+    /*
+     * Shows another ordered view, e.g. when switching chat lists.
+     */
+    void setItems(ChatOrderList list){
+        if (items == list) return;
+        items = list;
+        notifyDataSetChanged();
+    }
 
-            @Override
-            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
-                DialogItem a = old.get(oldItemPosition), b = newList.get(newItemPosition);
-                return a.order == b.order
-                        && a.isPinned == b.isPinned
-                        && TextUtils.equals(a.name, b.name)
-                        && TextUtils.equals(a.text, b.text)
-                        && TextUtils.equals(a.time, b.time)
-                        && a.unread == b.unread
-                        && a.isTyping == b.isTyping
-                        && a.avatarFileId == b.avatarFileId
-                        && TextUtils.equals(a.avatarPath, b.avatarPath);
-            }
-        });
+    ChatOrderList getItems(){
+        return items;
+    }
 
-        items.clear();
-        items.addAll(newList);
-        diff.dispatchUpdatesTo(this);
+    ListUpdateCallback getUpdateCallback(){
+        return updateCallback;
     }
 
+    /*
+     * Moves a pinned dialog for drag and drop by updating the local pinned order.
+     */
     public boolean movePinned(int from, int to){
         if (from < 0 || to < 0 || from >= items.size() || to >= items.size()) return false;
         if (!items.get(from).isPinned || !items.get(to).isPinned) return false;
 
-        DialogItem moved = items.remove(from);
-        items.add(to, moved);
+        List<Long> pinned = items.getPinnedIds();
+        pinned.add(to, pinned.remove(from));
+        items.setPinnedOrder(pinned);
         notifyItemMoved(from, to);
         return true;
     }
 
     public ArrayList<Long> getPinnedIdsInUiOrder() {
-        ArrayList<Long> res = new ArrayList<>();
-        for (DialogItem it : items) {
-            if (it.isPinned) res.add(it.chatId);
-            else break;
-        }
-        return res;
+        return new ArrayList<>(items.getPinnedIds());
     }
 
     @NonNull
@@ -148,7 +155,7 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
     @SuppressLint("ResourceAsColor")
     @Override
     public void onBindViewHolder(@NonNull VH h, int position) {
-        DialogItem item = getItem(position);
+        DialogItem item = hydrateIfNeeded(getItem(position));
 
         h.itemView.setOnClickListener(v -> {
             if (clickListener != null) clickListener.onDialogClick(item);
@@ -161,6 +168,10 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
             return true;
         });
 
+        if (theme == null) {
+            theme = AppManager.getInstance().getThemeEngine().requireTheme();
+        }
+
         int nameColor = theme.onSurfaceColor;
         int messageColor = theme.onSecondaryContainerColor;
         int timeColor = theme.onSecondaryContainerColor;
@@ -191,9 +202,31 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
             h.unread.setVisibility(View.GONE);
         }
 
+        h.avatarFileId = item.avatarFileId;
         bindAvatar(h.avatar, item.chatId, item.avatarFileId, item.avatarPath, badgeColor);
     }
 
+    @Override
+    public void onViewRecycled(@NonNull VH h) {
+        super.onViewRecycled(h);
+        // Off screen now, but likely to come back while scrolling back
+        if (media != null && h.avatarFileId != 0) {
+            media.deprioritize(h.avatarFileId, TdMediaRepository.PRIORITY_NEAR);
+        }
+        h.avatarFileId = 0;
+    }
+
+    private DialogItem hydrateIfNeeded(DialogItem item) {
+        if (item.hydrated || hydrator == null) return item;
+
+        DialogItem full = hydrator.hydrate(item);
+        // Same chat and position, so it replaces the summary without a notification
+        if (full != item && items.replaceInPlace(full) >= 0) {
+            return full;
+        }
+        return item;
+    }
+
     private void bindAvatar(ImageView iv, long chatId, int fileId, String pathFromModel, int badgeColor) {
         if (iv == null) return;
 
@@ -210,9 +243,10 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
         final String tag = chatId + ":" + fileId;
         iv.setTag(tag);
 
-        String path = !TextUtils.isEmpty(pathFromModel)
+        TdMediaRepository media = this.media;
+        String path = !TextUtils.isEmpty(pathFromModel) || media == null
                 ? pathFromModel
-                : TdMediaRepository.get().getCachedPath(fileId);
+                : media.getCachedPath(fileId);
 
         if (!TextUtils.isEmpty(path)) {
             Glide.with(iv)
@@ -224,7 +258,12 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
             return;
         }
 
-        TdMediaRepository.get().getPathOrRequest(fileId, p -> {
+        if (media == null) {
+            iv.setImageDrawable(placeholder);
+            return;
+        }
+
+        media.getPathOrRequest(fileId, TdMediaRepository.PRIORITY_VISIBLE, this, p -> {
             Object cur = iv.getTag();
             if (!(cur instanceof String) || !tag.equals(cur)) return;
             if (TextUtils.isEmpty(p)) return;
@@ -241,6 +280,7 @@ public class DialogsAdapter extends RecyclerView.Adapter<DialogsAdapter.VH> {
     static class VH extends RecyclerView.ViewHolder {
         final TextView name, time, message, unread;
         final ImageView avatar;
+        int avatarFileId;
 
         VH(@NonNull View itemView) {
             super(itemView);
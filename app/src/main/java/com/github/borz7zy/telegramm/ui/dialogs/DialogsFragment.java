@@ -4,11 +4,14 @@ import android.annotation.SuppressLint;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.text.TextUtils;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.core.view.OneShotPreDrawListener;
 import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.ItemTouchHelper;
@@ -26,35 +29,63 @@ import com.github.borz7zy.telegramm.ui.base.BaseTelegramFragment;
 import com.github.borz7zy.telegramm.ui.chat.ChatFragment;
 import com.github.borz7zy.telegramm.ui.model.DialogItem;
 import com.github.borz7zy.telegramm.ui.widget.SpringRecyclerView;
+import com.github.borz7zy.telegramm.utils.StartupTrace;
 import com.github.borz7zy.telegramm.utils.TdMediaRepository;
 
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DialogsFragment extends BaseTelegramFragment implements Client.ResultHandler {
     private DialogsAdapter adapter;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
-    private final Map<Long, DialogItem> dialogs = new ConcurrentHashMap<>();
+    private final DialogLists lists = new DialogLists();
+    // Shown list, written on the main thread
+    private volatile TdApi.ChatList activeList = new TdApi.ChatListMain();
+    private volatile String activeKey = DialogLists.MAIN;
+    private final ConcurrentHashMap<String, ListPaging> paging = new ConcurrentHashMap<>();
+    private volatile TdApi.ChatFolderInfo[] chatFolders = new TdApi.ChatFolderInfo[0];
+    // Shown chats that were not in the session cache, hydrated once GetChat returns
+    private final Set<Long> awaitingHydration = ConcurrentHashMap.newKeySet();
 
     private SpringRecyclerView recyclerView;
     private AccountSession currentSession;
+    // Set on the main thread together with the adapter's
+    private TdMediaRepository media;
 
     private ItemTouchHelper itemTouchHelper;
     private boolean isReordering;
-    private boolean pendingSubmit;
-    private ArrayList<Long> pinnedOrderOverride;
+    // SetPinnedChats requests not answered yet, the local pinned order stays until then
+    private int pendingPinnedUpdates;
+    // Lists whose local pinned order is dropped with the next refresh
+    private final Set<String> confirmedPinnedOrders = new HashSet<>();
 
     private int currentTop = 0;
     private int currentBottom = 0;
 
+    // Larger batches skip per-item notifications and rebind everything
+    private static final int MAX_ANIMATED_UPDATES = 64;
+
+    private static final int CHATS_PAGE_SIZE = 50;
+    // Next page is requested once the last visible dialog is this close to the end
+    private static final int LOAD_MORE_DISTANCE = 20;
+    // Hydrated dialogs further than this from the viewport are dehydrated on scroll idle
+    private static final int HYDRATED_DISTANCE = 60;
+
+    private boolean firstFrameTracked = false;
+
+    // Set while applying the dirty chats is waiting for the next frame
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+    private final Choreographer.FrameCallback refreshFrame = frameTimeNanos -> applyDirtyChats();
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         return inflater.inflate(R.layout.fragment_dialogs, container, false);
@@ -85,12 +116,27 @@ public class DialogsFragment extends BaseTelegramFragment implements Client.Resu
     private void setupRecyclerView() {
         adapter = new DialogsAdapter();
         recyclerView.setLayoutManager(new LinearLayoutManager(requireContext()));
+        // Views outlive the fragment's view, a recreated list shows them right away
+        adapter.setItems(lists.view(activeKey));
         recyclerView.setAdapter(adapter);
 
         adapter.setOnDialogClickListener(item -> {
             ChatFragment.newInstance(item.chatId, item.name)
                     .show(getParentFragmentManager(), "chat_sheet");
         });
+        adapter.setHydrator(this::hydrateDialog);
+
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView rv, int dx, int dy) {
+                if (dy > 0) maybeLoadMoreChats();
+            }
+
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView rv, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) dehydrateFarDialogs();
+            }
+        });
 
         itemTouchHelper = new ItemTouchHelper(new ItemTouchHelper.Callback() {
             @Override
@@ -133,15 +179,11 @@ public class DialogsFragment extends BaseTelegramFragment implements Client.Resu
             public void clearView(@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder viewHolder) {
                 super.clearView(recyclerView, viewHolder);
 
-                pinnedOrderOverride = adapter.getPinnedIdsInUiOrder();
-
-                updatePinnedOrderOnServer(pinnedOrderOverride);
+                updatePinnedOrderOnServer(adapter.getPinnedIdsInUiOrder());
 
+                // Apply the updates held back during the drag
                 isReordering = false;
-                if (pendingSubmit) {
-                    pendingSubmit = false;
-                    refreshList();
-                }
+                refreshList();
             }
         });
 
@@ -167,9 +209,11 @@ public class DialogsFragment extends BaseTelegramFragment implements Client.Resu
     public void onDestroyView() {
         super.onDestroyView();
         if (currentSession != null) {
-            currentSession.removeUpdateHandler(this);
+            currentSession.unsubscribe(this);
         }
         mainHandler.removeCallbacksAndMessages(null);
+        Choreographer.getInstance().removeFrameCallback(refreshFrame);
+        refreshScheduled.set(false);
     }
 
     @Override
@@ -183,21 +227,19 @@ public class DialogsFragment extends BaseTelegramFragment implements Client.Resu
         }
 
         else if (object instanceof TdApi.UpdateChatPosition) {
-            TdApi.UpdateChatPosition u = (TdApi.UpdateChatPosition) object;
-            if (u.position.list instanceof TdApi.ChatListMain) {
-                handleChatPosition(u.chatId, u.position);
-            }
+            handleChatPosition(((TdApi.UpdateChatPosition) object).chatId);
+        }
+
+        else if (object instanceof TdApi.UpdateChatFolders) {
+            chatFolders = ((TdApi.UpdateChatFolders) object).chatFolders;
         }
 
         else if (object instanceof TdApi.UpdateChatLastMessage) {
-            TdApi.UpdateChatLastMessage u = (TdApi.UpdateChatLastMessage) object;
-//            if (u.position.list instanceof TdApi.ChatListMain) {
-                currentSession.send(new TdApi.GetChat(u.chatId), this);
-//            }
+            refreshChat(((TdApi.UpdateChatLastMessage) object).chatId);
         }
 
         else if (object instanceof TdApi.UpdateChatReadInbox) {
-            currentSession.send(new TdApi.GetChat(((TdApi.UpdateChatReadInbox) object).chatId), this);
+            refreshChat(((TdApi.UpdateChatReadInbox) object).chatId);
         }
 
         else if (object instanceof TdApi.UpdateChatAction) {
@@ -220,28 +262,144 @@ public class DialogsFragment extends BaseTelegramFragment implements Client.Resu
 
             currentSession = AccountManager.getInstance().getSession(account.getAccountId());
 
-            TdMediaRepository.get().setCurrentAccountId(account.getAccountId());
-
             if (currentSession != null) {
-                currentSession.addUpdateHandler(this);
-                loadChats();
+                TdMediaRepository sessionMedia = TdMediaRepository.forSession(currentSession);
+                mainHandler.post(() -> {
+                    media = sessionMedia;
+                    adapter.setMediaRepository(sessionMedia);
+                });
+
+                currentSession.subscribe(this,
+                        TdApi.UpdateNewChat.CONSTRUCTOR,
+                        TdApi.UpdateChatPosition.CONSTRUCTOR,
+                        TdApi.UpdateChatLastMessage.CONSTRUCTOR,
+                        TdApi.UpdateChatReadInbox.CONSTRUCTOR,
+                        TdApi.UpdateChatAction.CONSTRUCTOR,
+                        TdApi.UpdateChatFolders.CONSTRUCTOR);
+                loadMoreChats(activeList);
             }
         });
     }
 
-    private void loadChats() {
-        currentSession.send(new TdApi.LoadChats(new TdApi.ChatListMain(), 100), object -> {
-            fetchChats();
+    // --------------------
+    // Chat lists
+    // --------------------
+
+    /*
+     * Shows another chat list, e.g. ChatListArchive or a ChatListFolder.
+     * Its view is kept up to date in the background, so switching is
+     * immediate and only pages that were never loaded are requested.
+     */
+    public void showChatList(TdApi.ChatList list) {
+        String key = DialogLists.keyOf(list);
+        if (key.equals(activeKey)) return;
+
+        activeList = list;
+        activeKey = key;
+        if (adapter != null) {
+            adapter.setItems(lists.view(key));
+            recyclerView.scrollToPosition(0);
+        }
+        maybeLoadMoreChats();
+    }
+
+    public TdApi.ChatList getActiveChatList() {
+        return activeList;
+    }
+
+    /*
+     * Folders of the account from the last UpdateChatFolders, for list switching.
+     */
+    public TdApi.ChatFolderInfo[] getChatFolders() {
+        return chatFolders;
+    }
+
+    // --------------------
+    // Paging
+    // --------------------
+
+    private static final class ListPaging {
+        final AtomicBoolean loading = new AtomicBoolean(false);
+        volatile boolean allLoaded = false;
+        volatile int requested = 0;
+    }
+
+    private ListPaging pagingOf(TdApi.ChatList list) {
+        return paging.computeIfAbsent(DialogLists.keyOf(list), k -> new ListPaging());
+    }
+
+    /*
+     * Asks TDLib for the next page of the chat list, at most one page per list
+     * is in flight. Chats of the page arrive as updates and through GetChats.
+     */
+    private void loadMoreChats(TdApi.ChatList list) {
+        AccountSession session = currentSession;
+        ListPaging state = pagingOf(list);
+        if (session == null || state.allLoaded) return;
+        if (!state.loading.compareAndSet(false, true)) return;
+
+        session.send(new TdApi.LoadChats(list, CHATS_PAGE_SIZE), object -> {
+            if (object instanceof TdApi.Error && ((TdApi.Error) object).code == 404) {
+                // Every chat of the list is known
+                state.allLoaded = true;
+            }
+            state.requested += CHATS_PAGE_SIZE;
+            fetchChats(session, list, state);
         });
     }
 
-    private void fetchChats() {
-        currentSession.send(new TdApi.GetChats(new TdApi.ChatListMain(), 100), object -> {
+    private void maybeLoadMoreChats() {
+        if (recyclerView == null || adapter == null) return;
+
+        TdApi.ChatList list = activeList;
+        ListPaging state = pagingOf(list);
+        if (state.allLoaded || state.loading.get()) return;
+
+        LinearLayoutManager lm = (LinearLayoutManager) recyclerView.getLayoutManager();
+        if (lm == null) return;
+
+        int last = lm.findLastVisibleItemPosition();
+        if (last >= adapter.getItemCount() - LOAD_MORE_DISTANCE) {
+            loadMoreChats(list);
+        }
+    }
+
+    private void fetchChats(AccountSession session, TdApi.ChatList list, ListPaging state) {
+        session.send(new TdApi.GetChats(list, state.requested), object -> {
+            state.loading.set(false);
+
             if (object instanceof TdApi.Chats) {
                 long[] ids = ((TdApi.Chats) object).chatIds;
+                List<TdApi.GetChat> requests = new ArrayList<>();
+                boolean cachedChanged = false;
                 for (long id : ids) {
-                    currentSession.send(new TdApi.GetChat(id), this);
+                    // Known chats are kept current by updates
+                    if (lists.contains(id)) continue;
+
+                    TdApi.Chat cached = session.getChat(id);
+                    if (cached != null) {
+                        cachedChanged |= applyChat(cached);
+                    } else {
+                        requests.add(new TdApi.GetChat(id));
+                    }
+                }
+
+                if (cachedChanged) {
+                    refreshList();
                 }
+                if (requests.isEmpty()) return;
+
+                session.sendBatch(requests, (results, errors) -> {
+                    boolean changed = false;
+                    for (TdApi.Object result : results) {
+                        if (result instanceof TdApi.Chat) {
+                            changed |= applyChat((TdApi.Chat) result);
+                        }
+                    }
+                    if (changed) {
+                        refreshList();
+                    }
+                });
             }
         });
     }
@@ -251,93 +409,182 @@ public class DialogsFragment extends BaseTelegramFragment implements Client.Resu
     }
 
     private void updateChat(TdApi.Chat chat) {
-        long order = getOrder(chat);
-
-        if (order == 0) {
-            if (dialogs.remove(chat.id) != null) {
-                refreshList();
-            }
-            return;
+        if (applyChat(chat)) {
+            refreshList();
         }
+    }
 
-        DialogItem newItem = new DialogItem(chat, order);
+    /*
+     * Stores the dialog of the chat. Which lists show it and where is taken
+     * from the chat's positions when the views are updated.
+     */
+    private boolean applyChat(TdApi.Chat chat) {
+        // Only chats that were shown get their last message and avatar prepared
+        DialogItem oldItem = lists.get(chat.id);
+        boolean hydrate = (oldItem != null && oldItem.hydrated) || awaitingHydration.remove(chat.id);
+        DialogItem newItem = hydrate ? new DialogItem(chat, 0) : DialogItem.summary(chat, 0);
 
-        DialogItem oldItem = dialogs.get(chat.id);
         if (oldItem != null) {
             newItem.isTyping = oldItem.isTyping;
         }
+        // Avatars downloaded before the client was reopened are matched by remote id
+        if (newItem.hydrated && TextUtils.isEmpty(newItem.avatarPath)
+                && media != null && chat.photo != null) {
+            newItem.avatarPath = media.getCachedPath(chat.photo.small);
+        }
 
-        dialogs.put(chat.id, newItem);
-        refreshList();
+        lists.put(newItem);
+        return true;
     }
 
-    private void handleChatPosition(long chatId, TdApi.ChatPosition position) {
-        if (position.order == 0) {
-            if (dialogs.remove(chatId) != null) {
-                refreshList();
-            }
-            return;
+    private void handleChatPosition(long chatId) {
+        // The session's chat store has already merged the new position
+        if (lists.contains(chatId)) {
+            lists.markDirty(chatId);
+            refreshList();
+        } else {
+            refreshChat(chatId);
         }
+    }
 
-        DialogItem old = dialogs.get(chatId);
-        if (old != null) {
-            DialogItem fresh = old.copyWithOrderPinned(position.order, position.isPinned);
-            dialogs.put(chatId, fresh);
-            refreshList();
+    private void refreshChat(long chatId) {
+        TdApi.Chat cached = currentSession.getChat(chatId);
+        if (cached != null) {
+            updateChat(cached);
         } else {
             currentSession.send(new TdApi.GetChat(chatId), this);
         }
     }
 
     private void handleTyping(long chatId) {
-        DialogItem old = dialogs.get(chatId);
+        DialogItem old = lists.get(chatId);
         if (old != null) {
-            dialogs.put(chatId, old.copyWithTyping(true));
+            lists.put(old.copyWithTyping(true));
             refreshList();
 
             mainHandler.postDelayed(() -> {
-                DialogItem cur = dialogs.get(chatId);
+                DialogItem cur = lists.get(chatId);
                 if (cur != null) {
-                    dialogs.put(chatId, cur.copyWithTyping(false));
+                    lists.put(cur.copyWithTyping(false));
                     refreshList();
                 }
             }, 3000);
         }
     }
 
+    /*
+     * Safe to call from any thread. All calls within a frame are coalesced,
+     * the changed chats are applied to the adapter on the next frame.
+     */
     private void refreshList() {
-        if (isReordering) {
-            pendingSubmit = true;
-            return;
+        if (!refreshScheduled.compareAndSet(false, true)) return;
+        // Choreographer is per thread, the hop is only needed off the main thread
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(refreshFrame);
+        } else {
+            mainHandler.post(() -> Choreographer.getInstance().postFrameCallback(refreshFrame));
         }
+    }
 
-        mainHandler.post(() -> {
-            ArrayList<DialogItem> list = new ArrayList<>(dialogs.values());
+    private void applyDirtyChats() {
+        refreshScheduled.set(false);
+        if (adapter == null || getView() == null) return;
 
-            final Map<Long, Integer> pinnedIndex = new HashMap<>();
-            if (pinnedOrderOverride != null) {
-                for (int i = 0; i < pinnedOrderOverride.size(); ++i) {
-                    pinnedIndex.put(pinnedOrderOverride.get(i), i);
+        // Applied once the drag ends
+        if (isReordering) return;
+
+        AccountSession session = currentSession;
+        if (session == null) return;
+
+        boolean animate = adapter.getItemCount() > 0 && lists.dirtyCount() <= MAX_ANIMATED_UPDATES;
+        lists.applyDirty(session, activeKey, animate ? adapter.getUpdateCallback() : null);
+
+        // TDLib sends the new positions before the answer, they were applied above
+        if (pendingPinnedUpdates == 0 && !confirmedPinnedOrders.isEmpty()) {
+            for (String key : confirmedPinnedOrders) {
+                boolean active = animate && key.equals(activeKey);
+                lists.view(key).clearPinnedOrder(active ? adapter.getUpdateCallback() : null);
+            }
+            confirmedPinnedOrders.clear();
+        }
+
+        if (!animate) {
+            adapter.notifyDataSetChanged();
+        }
+
+        if (!firstFrameTracked && adapter.getItemCount() > 0) {
+            firstFrameTracked = true;
+            OneShotPreDrawListener.add(recyclerView,
+                    () -> StartupTrace.reportFirstDialogsFrame(getActivity()));
+        }
+
+        // A short page may not fill the screen, so scrolling alone would not load more
+        maybeLoadMoreChats();
+    }
+
+    // --------------------
+    // Hydration
+    // --------------------
+
+    /*
+     * Called by the adapter when it binds a summary item. Returns the full
+     * item, or the summary while the chat is fetched.
+     */
+    private DialogItem hydrateDialog(DialogItem item) {
+        AccountSession session = currentSession;
+        DialogItem stored = lists.get(item.chatId);
+        if (session == null || stored == null) return item;
+
+        if (!stored.hydrated) {
+            TdApi.Chat chat = session.getChat(item.chatId);
+            if (chat == null) {
+                if (awaitingHydration.add(item.chatId)) {
+                    session.send(new TdApi.GetChat(item.chatId), this);
                 }
+                return item;
             }
 
-            Collections.sort(list, (a, b) -> {
-                if (a.isPinned != b.isPinned) return a.isPinned ? -1 : 1;
+            DialogItem full = stored.hydrate(chat);
+            // If a newer version arrived meanwhile it is already dirty and gets hydrated when bound
+            if (!lists.replace(stored, full, false)) return item;
+            stored = full;
+        }
 
-                if (a.isPinned) {
-                    Integer ia = pinnedIndex.get(a.chatId);
-                    Integer ib = pinnedIndex.get(b.chatId);
-                    if (ia != null || ib != null) {
-                        if (ia == null) return 1;
-                        if (ib == null) return -1;
-                        return Integer.compare(ia, ib);
-                    }
+        // Copies in other lists are hydrated the same way once they are bound
+        return stored.copyWithOrderPinned(item.order, item.isPinned);
+    }
+
+    /*
+     * Keeps memory bounded for large accounts: dialogs far from the viewport
+     * drop their last message and avatar until they are shown again, avatar
+     * downloads that have not finished yet are cancelled.
+     */
+    private void dehydrateFarDialogs() {
+        LinearLayoutManager lm = (LinearLayoutManager) recyclerView.getLayoutManager();
+        if (lm == null) return;
+
+        int first = lm.findFirstVisibleItemPosition();
+        int last = lm.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) return;
+
+        boolean changed = false;
+        for (DialogItem item : lists.values()) {
+            if (!item.hydrated) continue;
+
+            int pos = adapter.findPosition(item.chatId);
+            if (pos >= 0 && pos >= first - HYDRATED_DISTANCE && pos <= last + HYDRATED_DISTANCE) continue;
+
+            if (lists.replace(item, item.dehydrate(), true)) {
+                changed = true;
+                if (media != null && item.avatarFileId != 0 && TextUtils.isEmpty(item.avatarPath)) {
+                    media.cancel(item.avatarFileId, adapter);
                 }
-                return Long.compare(b.order, a.order);
-            });
+            }
+        }
 
-            adapter.submitList(list);
-        });
+        if (changed) {
+            refreshList();
+        }
     }
 
     private void updatePinnedOrderOnServer(ArrayList<Long> pinnedIds) {
@@ -346,16 +593,13 @@ public class DialogsFragment extends BaseTelegramFragment implements Client.Resu
         long[] ids = new long[pinnedIds.size()];
         for (int i = 0; i < pinnedIds.size(); ++i) ids[i] = pinnedIds.get(i);
 
-        currentSession.send(new TdApi.SetPinnedChats(new TdApi.ChatListMain(), ids));
-    }
-
-    private long getOrder(TdApi.Chat chat) {
-        if(chat == null || chat.positions == null) return 0;
-        for(TdApi.ChatPosition pos : chat.positions){
-            if(pos.list instanceof TdApi.ChatListMain){
-                return pos.order;
-            }
-        }
-        return 0;
+        String key = activeKey;
+        ++pendingPinnedUpdates;
+        currentSession.send(new TdApi.SetPinnedChats(activeList, ids), result -> mainHandler.post(() -> {
+            --pendingPinnedUpdates;
+            // Also on an error, the server order is the one to show then
+            confirmedPinnedOrders.add(key);
+            refreshList();
+        }));
     }
 }
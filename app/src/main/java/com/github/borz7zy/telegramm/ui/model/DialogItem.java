@@ -1,8 +1,9 @@
 package com.github.borz7zy.telegramm.ui.model;
 
-import static com.github.borz7zy.telegramm.utils.TgUtils.formatTime;
 import static com.github.borz7zy.telegramm.utils.TgUtils.getMessageText;
 
+import com.github.borz7zy.telegramm.utils.TimeFormatter;
+
 import org.drinkless.tdlib.TdApi;
 
 public class DialogItem {
@@ -16,6 +17,8 @@ public class DialogItem {
     public boolean isTyping;
     public int avatarFileId;
     public String avatarPath;
+    // Last message and avatar are filled in, see summary()
+    public boolean hydrated;
 
     public DialogItem(long chatId,
                       long order,
@@ -26,7 +29,8 @@ public class DialogItem {
                       int unread,
                       boolean isTyping,
                       int avatarFileId,
-                      String avatarPath) {
+                      String avatarPath,
+                      boolean hydrated) {
         this.chatId = chatId;
         this.order = order;
         this.isPinned = isPinned;
@@ -37,6 +41,7 @@ public class DialogItem {
         this.isTyping = isTyping;
         this.avatarFileId = avatarFileId;
         this.avatarPath = avatarPath;
+        this.hydrated = hydrated;
     }
 
     public DialogItem(TdApi.Chat chat, long order) {
@@ -45,6 +50,33 @@ public class DialogItem {
         updateFromChat(chat);
     }
 
+    /*
+     * Item with only what ordering and the list skeleton need: no last
+     * message text or avatar. Cheap enough to build for every chat of a
+     * large account, hydrate() fills in the rest once the item is shown.
+     */
+    public static DialogItem summary(TdApi.Chat chat, long order) {
+        return new DialogItem(chat.id, order, extractPinned(chat), chat.title,
+                "", "", chat.unreadCount, false, 0, null, false);
+    }
+
+    /*
+     * Full item for the chat, keeping this item's position and typing state.
+     */
+    public DialogItem hydrate(TdApi.Chat chat) {
+        DialogItem item = new DialogItem(chat, order);
+        item.isPinned = isPinned;
+        item.isTyping = isTyping;
+        return item;
+    }
+
+    /*
+     * Drops the last message and avatar, keeping what the list order needs.
+     */
+    public DialogItem dehydrate() {
+        return new DialogItem(chatId, order, isPinned, name, "", "", unread, isTyping, 0, null, false);
+    }
+
     public void updateFromChat(TdApi.Chat chat) {
         this.name = chat.title;
         this.unread = chat.unreadCount;
@@ -52,13 +84,14 @@ public class DialogItem {
 
         if (chat.lastMessage != null) {
             this.text = getMessageText(chat.lastMessage);
-            this.time = formatTime(chat.lastMessage.date);
+            this.time = TimeFormatter.formatDialogDate(chat.lastMessage.date);
         } else {
             this.text = "";
             this.time = "";
         }
 
         updateAvatar(chat.photo);
+        this.hydrated = true;
     }
 
     private static boolean extractPinned(TdApi.Chat chat) {
@@ -88,10 +121,10 @@ public class DialogItem {
     }
 
     public DialogItem copyWithOrderPinned(long newOrder, boolean pinned) {
-        return new DialogItem(chatId, newOrder, pinned, name, time, text, unread, isTyping, avatarFileId, avatarPath);
+        return new DialogItem(chatId, newOrder, pinned, name, time, text, unread, isTyping, avatarFileId, avatarPath, hydrated);
     }
 
     public DialogItem copyWithTyping(boolean typing) {
-        return new DialogItem(chatId, order, isPinned, name, time, text, unread, typing, avatarFileId, avatarPath);
+        return new DialogItem(chatId, order, isPinned, name, time, text, unread, typing, avatarFileId, avatarPath, hydrated);
     }
 }
\ No newline at end of file
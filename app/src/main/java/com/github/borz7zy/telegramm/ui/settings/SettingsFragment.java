@@ -1,15 +1,73 @@
 package com.github.borz7zy.telegramm.ui.settings;
 
 import android.os.Bundle;
+import android.text.format.Formatter;
 
+import androidx.annotation.Nullable;
+import androidx.preference.ListPreference;
+import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 
 import com.github.borz7zy.telegramm.R;
+import com.github.borz7zy.telegramm.core.accounts.AccountEntity;
+import com.github.borz7zy.telegramm.core.accounts.AccountManager;
+import com.github.borz7zy.telegramm.core.accounts.AccountSession;
+import com.github.borz7zy.telegramm.core.accounts.AccountStorage;
+import com.github.borz7zy.telegramm.core.accounts.MediaUsage;
 
 public class SettingsFragment extends PreferenceFragmentCompat {
 
+    private Preference mediaUsage;
+    private int activeAccountId = -1;
+
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
         setPreferencesFromResource(R.xml.root_preferences, rootKey);
+        setupStorage();
+    }
+
+    // --------------------
+    // Storage
+    // --------------------
+
+    private void setupStorage() {
+        AccountStorage storage = AccountStorage.getInstance();
+
+        ListPreference quota = findPreference("media_quota");
+        if (quota != null) {
+            quota.setValue(String.valueOf(storage.getMediaQuotaBytes()));
+            quota.setOnPreferenceChangeListener((preference, value) -> {
+                storage.setMediaQuotaBytes(Long.parseLong((String) value));
+                return true;
+            });
+        }
+
+        mediaUsage = findPreference("media_usage");
+        if (mediaUsage == null) return;
+
+        storage.observeActiveAccount().observe(this, this::onActiveAccount);
+        storage.observeMediaUsage().observe(this, usage -> {
+            if (usage.accountId == activeAccountId) showMediaUsage(usage);
+        });
+    }
+
+    private void onActiveAccount(@Nullable AccountEntity account) {
+        activeAccountId = account != null ? account.getAccountId() : -1;
+        showMediaUsage(account != null ? AccountStorage.getInstance().getMediaUsage(activeAccountId) : null);
+
+        // Counted again so the screen does not show a stale number, only if the session is open anyway
+        AccountSession session = account != null ? AccountManager.getInstance().getSession(activeAccountId) : null;
+        if (session != null && session.isOpen()) {
+            AccountStorage.getInstance().checkMediaSpace(session);
+        }
+    }
+
+    private void showMediaUsage(@Nullable MediaUsage usage) {
+        if (usage == null) {
+            mediaUsage.setSummary(R.string.media_usage_unknown);
+            return;
+        }
+        mediaUsage.setSummary(getString(R.string.media_usage_summary,
+                Formatter.formatShortFileSize(requireContext(), usage.totalBytes), usage.fileCount));
     }
-}
\ No newline at end of file
+}
@@ -9,6 +9,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class JustifiedLayout extends ViewGroup {
@@ -21,8 +22,6 @@ public class JustifiedLayout extends ViewGroup {
 
     private boolean justifyLastRow = true;
 
-    private final List<Row> rows = new ArrayList<>();
-
     public JustifiedLayout(@NonNull Context context) { super(context); }
     public JustifiedLayout(@NonNull Context context, @Nullable AttributeSet attrs) { super(context, attrs); }
     public JustifiedLayout(@NonNull Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
@@ -71,24 +70,78 @@ public class JustifiedLayout extends ViewGroup {
         public LayoutParams(LayoutParams source) { super(source); this.aspectRatio = source.aspectRatio; }
     }
 
-    private static class Row {
-        final int startIndex;
-        final int count;
-        final int heightPx;
-        final int[] widthsPx;
-
-        Row(int startIndex, int count, int heightPx, int[] widthsPx) {
-            this.startIndex = startIndex;
-            this.count = count;
-            this.heightPx = heightPx;
-            this.widthsPx = widthsPx;
+    /*
+     * Row layout of the visible children for a given content width.
+     * It depends only on the aspect ratios and the row settings, so it can be
+     * computed off the main thread and handed over with setPrecomputedGeometry().
+     */
+    public static final class Geometry {
+        final float[] aspectRatios;
+        final int contentWidth;
+        final int spacingPx;
+        final int targetRowHeightPx;
+        final int minRowHeightPx;
+        final int maxRowHeightPx;
+        final boolean justifyLastRow;
+
+        final int rowCount;
+        final int[] rowSizes;
+        final int[] rowHeights;
+        final int[] widths;
+        final int contentHeight;
+
+        Geometry(float[] aspectRatios, int contentWidth, int spacingPx, int targetRowHeightPx,
+                 int minRowHeightPx, int maxRowHeightPx, boolean justifyLastRow,
+                 int rowCount, int[] rowSizes, int[] rowHeights, int[] widths) {
+            this.aspectRatios = aspectRatios;
+            this.contentWidth = contentWidth;
+            this.spacingPx = spacingPx;
+            this.targetRowHeightPx = targetRowHeightPx;
+            this.minRowHeightPx = minRowHeightPx;
+            this.maxRowHeightPx = maxRowHeightPx;
+            this.justifyLastRow = justifyLastRow;
+            this.rowCount = rowCount;
+            this.rowSizes = rowSizes;
+            this.rowHeights = rowHeights;
+            this.widths = widths;
+
+            int h = 0;
+            for (int r = 0; r < rowCount; r++) {
+                h += rowHeights[r];
+                if (r != rowCount - 1) h += spacingPx;
+            }
+            this.contentHeight = h;
+        }
+
+        boolean matches(float[] ratios, int contentW, int spacing, int target, int min, int max, boolean justifyLast) {
+            return contentWidth == contentW
+                    && spacingPx == spacing
+                    && targetRowHeightPx == target
+                    && minRowHeightPx == min
+                    && maxRowHeightPx == max
+                    && justifyLastRow == justifyLast
+                    && Arrays.equals(aspectRatios, ratios);
         }
     }
 
+    private final List<Integer> visibleChildren = new ArrayList<>();
+    private Geometry geometry;
+    @Nullable private Geometry precomputedGeometry;
+
+    /*
+     * Geometry prepared in the background, used by the next measure pass
+     * if it was computed for the same children, width and settings.
+     */
+    public void setPrecomputedGeometry(@Nullable Geometry geometry) {
+        if (precomputedGeometry == geometry) return;
+        precomputedGeometry = geometry;
+        requestLayout();
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-        rows.clear();
-        rowTags.clear();
+        visibleChildren.clear();
+        geometry = null;
 
         int widthMode = MeasureSpec.getMode(widthMeasureSpec);
         int widthSize = MeasureSpec.getSize(widthMeasureSpec);
@@ -102,121 +155,124 @@ public class JustifiedLayout extends ViewGroup {
         contentW = Math.max(0, contentW);
 
         int childCount = getChildCount();
-        List<Integer> visible = new ArrayList<>(childCount);
         for (int i = 0; i < childCount; i++) {
-            if (getChildAt(i).getVisibility() != GONE) visible.add(i);
+            if (getChildAt(i).getVisibility() != GONE) visibleChildren.add(i);
         }
 
-        List<Integer> currentRow = new ArrayList<>();
-        float sumAr = 0f;
+        float[] ratios = new float[visibleChildren.size()];
+        for (int i = 0; i < ratios.length; i++) {
+            ratios[i] = getAspectRatio(getChildAt(visibleChildren.get(i)));
+        }
 
-        int vCount = visible.size();
-        int rowStartVisiblePos = 0;
+        Geometry g = precomputedGeometry;
+        if (g == null || !g.matches(ratios, contentW, spacingPx, targetRowHeightPx, minRowHeightPx, maxRowHeightPx, justifyLastRow)) {
+            g = computeGeometry(ratios, contentW, spacingPx, targetRowHeightPx, minRowHeightPx, maxRowHeightPx, justifyLastRow);
+        }
+        geometry = g;
 
-        for (int pos = 0; pos < vCount; pos++) {
-            int childIndex = visible.get(pos);
-            View child = getChildAt(childIndex);
-            float ar = getAspectRatio(child);
-            if (ar <= 0f) ar = 1f;
+        int k = 0;
+        for (int r = 0; r < g.rowCount; r++) {
+            int h = g.rowHeights[r];
+            for (int i = 0; i < g.rowSizes[r]; i++, k++) {
+                View child = getChildAt(visibleChildren.get(k));
+                child.measure(
+                        MeasureSpec.makeMeasureSpec(g.widths[k], MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec(h, MeasureSpec.EXACTLY)
+                );
+            }
+        }
+
+        int totalH = getPaddingTop() + getPaddingBottom() + g.contentHeight;
+        int resolvedH = resolveSize(totalH, heightMeasureSpec);
+        setMeasuredDimension(widthSize, resolvedH);
+    }
 
-            currentRow.add(childIndex);
+    /*
+     * Splits items with the given aspect ratios into rows: a row is closed once
+     * it fills the width at the target height, and justified to the full width
+     * unless it is the last row and justifyLastRow is off.
+     */
+    public static Geometry computeGeometry(float[] aspectRatios, int contentW, int spacingPx,
+                                           int targetRowHeightPx, int minRowHeightPx, int maxRowHeightPx,
+                                           boolean justifyLastRow) {
+        int n = aspectRatios.length;
+        float[] ratios = new float[n];
+        for (int i = 0; i < n; i++) {
+            ratios[i] = aspectRatios[i] > 0f ? aspectRatios[i] : 1f;
+        }
+
+        int[] rowSizes = new int[n];
+        int[] rowHeights = new int[n];
+        int[] widths = new int[n];
+        int rowCount = 0;
+
+        int rowStart = 0;
+        float sumAr = 0f;
+
+        for (int pos = 0; pos < n; pos++) {
+            float ar = ratios[pos];
             sumAr += ar;
+            int count = pos - rowStart + 1;
 
-            boolean isLast = (pos == vCount - 1);
+            boolean isLast = (pos == n - 1);
             boolean rowIsFullAtTarget = (sumAr * targetRowHeightPx) >= contentW;
 
             if (!rowIsFullAtTarget && !isLast) continue;
 
             if (isLast && !justifyLastRow) {
                 int h = clamp(targetRowHeightPx, minRowHeightPx, maxRowHeightPx);
-                addRow(contentW, currentRow, sumAr, h, /*forceJustify*/ false, rowStartVisiblePos, visible);
+                fillRow(ratios, widths, rowStart, count, contentW, spacingPx, h, /*forceJustify*/ false);
+                rowSizes[rowCount] = count;
+                rowHeights[rowCount++] = h;
                 break;
             }
 
-            int n = currentRow.size();
-            int innerW = contentW - spacingPx * (n - 1);
+            int innerW = contentW - spacingPx * (count - 1);
             innerW = Math.max(0, innerW);
             int hExact = (sumAr > 0f) ? (int) Math.floor(innerW / sumAr) : targetRowHeightPx;
 
-            if (hExact < minRowHeightPx && n > 1 && !isLast) {
-                int lastChildIndex = currentRow.remove(n - 1);
-                float lastAr = getAspectRatio(getChildAt(lastChildIndex));
-                if (lastAr <= 0f) lastAr = 1f;
-                sumAr -= lastAr;
+            if (hExact < minRowHeightPx && count > 1 && !isLast) {
+                // Move the last item to the next row
+                sumAr -= ar;
 
-                int n2 = currentRow.size();
-                int innerW2 = contentW - spacingPx * (n2 - 1);
+                int count2 = count - 1;
+                int innerW2 = contentW - spacingPx * (count2 - 1);
                 innerW2 = Math.max(0, innerW2);
                 int hExact2 = (sumAr > 0f) ? (int) Math.floor(innerW2 / sumAr) : targetRowHeightPx;
                 int h2 = clamp(hExact2, minRowHeightPx, maxRowHeightPx);
 
-                addRow(contentW, currentRow, sumAr, h2, /*forceJustify*/ true, rowStartVisiblePos, visible);
-
-                currentRow = new ArrayList<>();
-                currentRow.add(lastChildIndex);
-                sumAr = lastAr;
+                fillRow(ratios, widths, rowStart, count2, contentW, spacingPx, h2, /*forceJustify*/ true);
+                rowSizes[rowCount] = count2;
+                rowHeights[rowCount++] = h2;
 
-                rowStartVisiblePos = pos;
+                rowStart = pos;
+                sumAr = ar;
                 continue;
             }
 
             int h = clamp(hExact, minRowHeightPx, maxRowHeightPx);
-            addRow(contentW, currentRow, sumAr, h, /*forceJustify*/ true, rowStartVisiblePos, visible);
+            fillRow(ratios, widths, rowStart, count, contentW, spacingPx, h, /*forceJustify*/ true);
+            rowSizes[rowCount] = count;
+            rowHeights[rowCount++] = h;
 
-            currentRow = new ArrayList<>();
+            rowStart = pos + 1;
             sumAr = 0f;
-            rowStartVisiblePos = pos + 1;
-        }
-
-        int totalH = getPaddingTop() + getPaddingBottom();
-        for (int r = 0; r < rows.size(); r++) {
-            Row row = rows.get(r);
-            totalH += row.heightPx;
-            if (r != rows.size() - 1) totalH += spacingPx;
-        }
-
-        for (int rowIdx = 0; rowIdx < rows.size(); rowIdx++) {
-            Row row = rows.get(rowIdx);
-            int[] childIndices = rowTags.get(rowIdx);
-
-            for (int i = 0; i < row.count; i++) {
-                int childIndex = childIndices[i];
-                View child = getChildAt(childIndex);
-
-                int w = row.widthsPx[i];
-                int h = row.heightPx;
-                child.measure(
-                        MeasureSpec.makeMeasureSpec(w, MeasureSpec.EXACTLY),
-                        MeasureSpec.makeMeasureSpec(h, MeasureSpec.EXACTLY)
-                );
-            }
         }
 
-        int resolvedH = resolveSize(totalH, heightMeasureSpec);
-        setMeasuredDimension(widthSize, resolvedH);
+        return new Geometry(aspectRatios.clone(), contentW, spacingPx, targetRowHeightPx,
+                minRowHeightPx, maxRowHeightPx, justifyLastRow,
+                rowCount, rowSizes, rowHeights, widths);
     }
 
-    private void addRow(int contentW,
-                        List<Integer> rowChildren,
-                        float sumAr,
-                        int rowHeightPx,
-                        boolean forceJustify,
-                        int rowStartVisiblePos,
-                        List<Integer> visible) {
-
-        int n = rowChildren.size();
-        int[] widths = new int[n];
-
+    private static void fillRow(float[] ratios, int[] widths, int start, int n,
+                                int contentW, int spacingPx, int rowHeightPx, boolean forceJustify) {
         int innerW = contentW - spacingPx * (n - 1);
         innerW = Math.max(0, innerW);
 
         float sumIdeal = 0f;
         float[] ideal = new float[n];
         for (int i = 0; i < n; i++) {
-            View child = getChildAt(rowChildren.get(i));
-            float ar = getAspectRatio(child);
-            if (ar <= 0f) ar = 1f;
-            ideal[i] = rowHeightPx * ar;
+            ideal[i] = rowHeightPx * ratios[start + i];
             sumIdeal += ideal[i];
         }
 
@@ -228,51 +284,36 @@ public class JustifiedLayout extends ViewGroup {
         int used = 0;
         for (int i = 0; i < n; i++) {
             int w = Math.max(1, Math.round(ideal[i] * scale));
-            widths[i] = w;
+            widths[start + i] = w;
             used += w;
         }
 
         int delta = innerW - used;
-        widths[n - 1] = Math.max(1, widths[n - 1] + delta);
-
-        int[] childIndices = new int[n];
-        for (int i = 0; i < n; i++) childIndices[i] = rowChildren.get(i);
-
-        Row row = new Row(/*startIndex*/ 0, n, rowHeightPx, widths);
-        rowTags.add(childIndices);
-        rows.add(row);
-    }
-
-    private final List<int[]> rowTags = new ArrayList<>();
-
-    private int rowChildIndex(Row row, int i) {
-        int idx = rows.indexOf(row);
-        return rowTags.get(idx)[i];
+        widths[start + n - 1] = Math.max(1, widths[start + n - 1] + delta);
     }
 
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        Geometry g = geometry;
+        if (g == null) return;
+
         int x0 = getPaddingLeft();
         int y = getPaddingTop();
 
-        for (int rowIdx = 0; rowIdx < rows.size(); rowIdx++) {
-            Row row = rows.get(rowIdx);
-            int[] childIndices = rowTags.get(rowIdx);
+        int k = 0;
+        for (int rowIdx = 0; rowIdx < g.rowCount; rowIdx++) {
+            int h = g.rowHeights[rowIdx];
 
             int x = x0;
-            for (int i = 0; i < row.count; i++) {
-                int childIndex = childIndices[i];
-                View child = getChildAt(childIndex);
-                if (child.getVisibility() == GONE) continue;
-
-                int w = row.widthsPx[i];
-                int h = row.heightPx;
+            for (int i = 0; i < g.rowSizes[rowIdx]; i++, k++) {
+                View child = getChildAt(visibleChildren.get(k));
+                int w = g.widths[k];
 
                 child.layout(x, y, x + w, y + h);
                 x += w + spacingPx;
             }
-            y += row.heightPx;
-            if (rowIdx != rows.size() - 1) y += spacingPx;
+            y += h;
+            if (rowIdx != g.rowCount - 1) y += spacingPx;
         }
     }
 
@@ -284,7 +325,7 @@ public class JustifiedLayout extends ViewGroup {
         return 1f;
     }
 
-    private int clamp(int v, int min, int max) {
+    private static int clamp(int v, int min, int max) {
         return Math.max(min, Math.min(max, v));
     }
 }
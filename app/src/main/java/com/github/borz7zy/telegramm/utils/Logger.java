@@ -11,20 +11,25 @@ import java.util.concurrent.Executors;
 
 public class Logger {
     private static final String TAG = "TelegramM";
-    private static File logFile;
+    private static volatile File logFile;
 
     private static final ExecutorService executor =
             Executors.newSingleThreadExecutor();
 
     public static void init(Context context) {
 
-        File dir = new File(context.getFilesDir(), "logs");
+        Context appContext = context.getApplicationContext();
 
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
+        // disk access stays off the caller's thread, queued ahead of any write
+        executor.execute(() -> {
+            File dir = new File(appContext.getFilesDir(), "logs");
+
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
 
-        logFile = new File(dir, "app.log");
+            logFile = new File(dir, "app.log");
+        });
     }
 
     public static void LOGD(String tag, String msg) {
@@ -59,10 +64,10 @@ public class Logger {
 
     private static void write(String level, String tag, String msg) {
 
-        if (logFile == null) return;
-
         executor.execute(() -> {
 
+            if (logFile == null) return;
+
             try (FileWriter fw = new FileWriter(logFile, true);
                  BufferedWriter bw = new BufferedWriter(fw)) {
 
@@ -0,0 +1,77 @@
+package com.github.borz7zy.telegramm.utils;
+
+import android.app.Activity;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Records how long each startup phase takes and when the dialog list
+ * draws its first frame. Phases also show up as async sections in
+ * system traces, so they can be inspected in Perfetto.
+ */
+public final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    public static final String FIRST_DIALOGS_FRAME = "firstDialogsFrame";
+
+    private static final ConcurrentHashMap<String, Long> startedAt = new ConcurrentHashMap<>();
+    private static final Map<String, Long> durations = new LinkedHashMap<>();
+
+    private static volatile boolean firstFrameReported = false;
+
+    private StartupTrace(){}
+
+    public static void begin(String phase) {
+        startedAt.put(phase, SystemClock.elapsedRealtimeNanos());
+        Trace.beginAsyncSection(phase, 0);
+    }
+
+    public static void end(String phase) {
+        Long start = startedAt.remove(phase);
+        if (start == null) return;
+
+        Trace.endAsyncSection(phase, 0);
+        long durationMs = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000;
+        synchronized (durations) {
+            durations.put(phase, durationMs);
+        }
+    }
+
+    /*
+     * Marks the first drawn frame of the dialog list: records the time since
+     * process start and tells the system the activity is fully drawn.
+     */
+    public static void reportFirstDialogsFrame(Activity activity) {
+        if (firstFrameReported) return;
+        firstFrameReported = true;
+
+        long sinceStartMs = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        synchronized (durations) {
+            durations.put(FIRST_DIALOGS_FRAME, sinceStartMs);
+        }
+
+        if (activity != null) {
+            activity.reportFullyDrawn();
+        }
+
+        Logger.LOGI(TAG, describe());
+    }
+
+    public static Map<String, Long> getDurations() {
+        synchronized (durations) {
+            return new LinkedHashMap<>(durations);
+        }
+    }
+
+    public static String describe() {
+        StringBuilder sb = new StringBuilder("Startup phases (ms):");
+        for (Map.Entry<String, Long> e : getDurations().entrySet()) {
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
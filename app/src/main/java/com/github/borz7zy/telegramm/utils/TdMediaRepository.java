@@ -2,49 +2,219 @@ package com.github.borz7zy.telegramm.utils;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.LruCache;
 
 import androidx.annotation.Nullable;
 
+import com.github.borz7zy.telegramm.AppManager;
 import com.github.borz7zy.telegramm.core.accounts.AccountManager;
 import com.github.borz7zy.telegramm.core.accounts.AccountSession;
+import com.github.borz7zy.telegramm.core.media.MediaPathDao;
+import com.github.borz7zy.telegramm.core.media.MediaPathEntity;
 
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
+/*
+ * Downloaded file paths of one account. File ids are only unique within
+ * an account, so every account has its own repository, which sends its
+ * downloads to that account's session only. Each repository keeps its own
+ * in-flight table, so accounts download concurrently. All repositories
+ * share one path cache keyed by account and file id, so the memory bound
+ * stays global.
+ *
+ * Downloads are queued by priority and only a few run at a time per
+ * account. Files on screen use PRIORITY_VISIBLE and may take every slot,
+ * files near the viewport and prefetched ones are limited to part of them,
+ * so scrolling never waits behind background downloads.
+ *
+ * Downloads are asynchronous: DownloadFile returns at once and progress
+ * arrives as UpdateFile, which the repository only subscribes to while
+ * something is downloading, so idle sessions can still hibernate.
+ * Progress listeners also get the partial file once enough of it has
+ * arrived to render its prefix, e.g. of a progressive JPEG.
+ *
+ * File ids only hold while the account's TDLib client stays open, so
+ * paths are also remembered by the file's remote unique id. Paths of
+ * finished downloads are stored in the media_paths table by that id and
+ * the most recent ones are loaded back when the repository is created,
+ * so after a restart cached avatars and photos show without a
+ * DownloadFile round trip. A restored path is only used for a TdApi.File
+ * with the same remote unique id, see getCachedPath(TdApi.File), and
+ * restored files that are gone or changed size are dropped on load.
+ */
 public final class TdMediaRepository {
+    private static final String TAG = "TdMediaRepository";
+    private static final int MAX_CACHED_PATHS = 2048;
 
-    private static final TdMediaRepository INSTANCE = new TdMediaRepository();
-    public static TdMediaRepository get() { return INSTANCE; }
+    // TDLib download priorities, 1..32, higher ones are started first
+    public static final int PRIORITY_VISIBLE = 32;
+    public static final int PRIORITY_NEAR = 16;
+    public static final int PRIORITY_PREFETCH = 1;
 
-    private final LruCache<Integer, String> pathCache;
+    private static final int MAX_ACTIVE_DOWNLOADS = 4;
+    // Slots downloads below PRIORITY_VISIBLE may use
+    private static final int MAX_BACKGROUND_DOWNLOADS = 2;
+    private static final int STATS_LOG_INTERVAL = 50;
 
-    private final ConcurrentHashMap<Integer, CopyOnWriteArrayList<Consumer<String>>> callbacks = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Integer, Boolean> inFlight = new ConcurrentHashMap<>();
+    // Partial files are handed out from this prefix size on, in at most this many steps
+    private static final long MIN_PARTIAL_PREFIX_SIZE = 16 * 1024;
+    private static final int PARTIAL_STEPS = 4;
 
-    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Rows of the path index kept per account
+    private static final int MAX_INDEXED_PATHS = 4096;
+    private static final int MAX_DELETE_CHUNK = 500;
 
-    private volatile int currentAccountId = -1;
+    // Equal priorities: the latest request is the one most likely still on screen
+    private static final Comparator<Download> QUEUE_ORDER = (a, b) -> {
+        if (a.priority != b.priority) return Integer.compare(b.priority, a.priority);
+        return Long.compare(b.seq, a.seq);
+    };
 
-    private TdMediaRepository() {
-        this.pathCache = new LruCache<>(2048);
+    private static final ConcurrentHashMap<Integer, TdMediaRepository> repositories = new ConcurrentHashMap<>();
+    private static final LruCache<Long, String> pathCache = new LruCache<>(MAX_CACHED_PATHS);
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final int accountId;
+    // Paths by remote unique id, these survive the client being reopened
+    private final LruCache<String, String> uniquePaths = new LruCache<>(MAX_CACHED_PATHS);
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final HashMap<Integer, Download> downloads = new HashMap<>();
+    private final PriorityQueue<Download> queue = new PriorityQueue<>(QUEUE_ORDER);
+    private int activeCount;
+    private int backgroundCount;
+    private long nextSeq;
+    // Session whose UpdateFile is observed, only while downloads run
+    private AccountSession subscribedSession;
+
+    private final Client.ResultHandler fileUpdates = object -> {
+        if (object instanceof TdApi.UpdateFile update) {
+            onFile(update.file, false);
+        }
+    };
+
+    private final AtomicLong firstPixelCount = new AtomicLong();
+    private final AtomicLong totalFirstPixelNanos = new AtomicLong();
+    private volatile long maxFirstPixelNanos = 0;
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    // Finished downloads waiting to be written to the path index
+    private final ConcurrentLinkedQueue<MediaPathEntity> pendingIndex = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean indexFlushScheduled = new AtomicBoolean();
+
+    private TdMediaRepository(int accountId) {
+        this.accountId = accountId;
+        AppManager.getInstance().getExecutorDb().execute(this::loadIndex);
+    }
+
+    public static TdMediaRepository forAccount(int accountId) {
+        return repositories.computeIfAbsent(accountId, TdMediaRepository::new);
+    }
+
+    public static TdMediaRepository forSession(AccountSession session) {
+        return forAccount(session.getAccountId());
+    }
+
+    /*
+     * Progress of a running download, delivered on the main thread.
+     */
+    public interface ProgressListener {
+        /*
+         * partialPath is set when enough more of the file has arrived to
+         * render its prefix again, null otherwise.
+         */
+        void onProgress(int fileId, long downloadedSize, long expectedSize, @Nullable String partialPath);
+    }
+
+    /*
+     * Forgets the cached paths of the account, e.g. once it is logged out.
+     * Requests still in flight are abandoned.
+     */
+    public static void release(int accountId) {
+        TdMediaRepository repository = repositories.remove(accountId);
+        if (repository != null) {
+            synchronized (repository.lock) {
+                repository.unsubscribeLocked();
+            }
+            repository.pendingIndex.clear();
+        }
+        AppManager.getInstance().getExecutorDb().execute(() ->
+                AppManager.getInstance().getAppDatabase().mediaPathDao().deleteAccount(accountId));
+        forgetFileIds(accountId);
+    }
+
+    /*
+     * The account's TDLib client was closed, so its file ids are no longer
+     * valid. Downloads still in flight end with null and paths are only
+     * found again by remote unique id.
+     */
+    public static void onClientClosed(int accountId) {
+        TdMediaRepository repository = repositories.get(accountId);
+        if (repository == null) return;
+
+        ArrayList<Download> dropped;
+        synchronized (repository.lock) {
+            dropped = new ArrayList<>(repository.downloads.values());
+            repository.downloads.clear();
+            repository.queue.clear();
+            repository.activeCount = 0;
+            repository.backgroundCount = 0;
+            repository.unsubscribeLocked();
+        }
+        forgetFileIds(accountId);
+
+        if (dropped.isEmpty()) return;
+        mainHandler.post(() -> {
+            for (Download d : dropped) {
+                d.finished = true;
+                deliver(d, null);
+            }
+        });
     }
 
-    public void setCurrentAccountId(int accountId) {
-        this.currentAccountId = accountId;
+    private static void forgetFileIds(int accountId) {
+        for (Long key : pathCache.snapshot().keySet()) {
+            if ((int) (key >> 32) == accountId) {
+                pathCache.remove(key);
+            }
+        }
+    }
+
+    private static long fileKey(int accountId, int fileId) {
+        return ((long) accountId << 32) | (fileId & 0xFFFFFFFFL);
+    }
+
+    public int getAccountId() {
+        return accountId;
     }
 
+    /*
+     * Path of a file already downloaded by the current client.
+     */
     @Nullable
     public String getCachedPath(int fileId) {
         if (fileId == 0) return null;
 
-        String cached = pathCache.get(fileId);
+        String cached = pathCache.get(fileKey(accountId, fileId));
 
         if(!TextUtils.isEmpty(cached)){
             return cached;
@@ -52,7 +222,67 @@ public final class TdMediaRepository {
         return null;
     }
 
+    /*
+     * Same for a file TDLib just returned, also matching paths known from
+     * before the client was reopened or the app restarted by the file's
+     * remote unique id.
+     */
+    @Nullable
+    public String getCachedPath(@Nullable TdApi.File file) {
+        if (file == null || file.id == 0) return null;
+
+        if (file.local != null && file.local.isDownloadingCompleted && !TextUtils.isEmpty(file.local.path)) {
+            remember(file, file.local.path);
+            return file.local.path;
+        }
+
+        String cached = getCachedPath(file.id);
+        if (cached != null) return cached;
+
+        String uniqueId = uniqueId(file);
+        if (uniqueId.isEmpty()) return null;
+
+        String path = uniquePaths.get(uniqueId);
+        if (path == null) return null;
+
+        pathCache.put(fileKey(accountId, file.id), path);
+        return path;
+    }
+
+    private void remember(TdApi.File file, String path) {
+        pathCache.put(fileKey(accountId, file.id), path);
+        String uniqueId = uniqueId(file);
+        if (!uniqueId.isEmpty()) {
+            uniquePaths.put(uniqueId, path);
+        }
+    }
+
+    private static String uniqueId(TdApi.File file) {
+        return file.remote != null && file.remote.uniqueId != null ? file.remote.uniqueId : "";
+    }
+
+    /*
+     * Path of a file that is on screen, downloaded first if needed.
+     */
     public void getPathOrRequest(int fileId, Consumer<String> onReady) {
+        getPathOrRequest(fileId, PRIORITY_VISIBLE, null, onReady);
+    }
+
+    /*
+     * onReady gets the path, or null if the download failed or was cancelled,
+     * on the main thread unless the path is already cached. The owner can
+     * give up waiting with cancel() or cancelAll(); requests without one
+     * keep the download until it ends.
+     */
+    public void getPathOrRequest(int fileId, int priority, @Nullable Object owner, Consumer<String> onReady) {
+        getPathOrRequest(fileId, priority, owner, onReady, null);
+    }
+
+    /*
+     * Same, with progress reported to onProgress until the download ends.
+     */
+    public void getPathOrRequest(int fileId, int priority, @Nullable Object owner, Consumer<String> onReady,
+                                 @Nullable ProgressListener onProgress) {
         if (fileId == 0) {
             onReady.accept(null);
             return;
@@ -64,62 +294,527 @@ public final class TdMediaRepository {
             return;
         }
 
-        callbacks.compute(fileId, (id, list)->{
-            if(list == null){
-                list = new CopyOnWriteArrayList<>();
+        enqueue(fileId, priority, new Waiter(owner, onReady, onProgress));
+    }
+
+    /*
+     * Queues the file without waiting for it, e.g. for items near the viewport.
+     * A file that is already queued only has its priority raised. The owner
+     * counts as waiting for it until it cancels.
+     */
+    public void prefetch(int fileId, int priority, Object owner) {
+        if (fileId == 0 || getCachedPath(fileId) != null) return;
+        enqueue(fileId, priority, new Waiter(owner, null, null));
+    }
+
+    /*
+     * Lowers the priority of a queued or running download, e.g. once its
+     * view is recycled. Downloads already below the priority are left as is.
+     */
+    public void deprioritize(int fileId, int priority) {
+        boolean resend;
+        synchronized (lock) {
+            Download d = downloads.get(fileId);
+            if (d == null || d.priority <= priority) return;
+            resend = setPriority(d, priority);
+        }
+        if (resend) sendPriority(fileId, priority);
+    }
+
+    /*
+     * The owner no longer waits for the file. The download is dropped once
+     * nobody waits for it anymore, so other screens showing the same file
+     * keep getting it.
+     */
+    public void cancel(int fileId, Object owner) {
+        Download d;
+        synchronized (lock) {
+            d = downloads.get(fileId);
+            if (d == null || !removeWaiters(d, owner) || !d.waiters.isEmpty()) return;
+            dropLocked(d);
+        }
+        cancelDownload(d);
+    }
+
+    /*
+     * Same for every file the owner waits for, e.g. once its screen is closed.
+     */
+    public void cancelAll(Object owner) {
+        ArrayList<Download> dropped = new ArrayList<>();
+        synchronized (lock) {
+            for (Download d : downloads.values()) {
+                if (removeWaiters(d, owner) && d.waiters.isEmpty()) {
+                    dropped.add(d);
+                }
             }
-            list.add(onReady);
-            return list;
-        });
+            for (Download d : dropped) {
+                dropLocked(d);
+            }
+        }
+        for (Download d : dropped) {
+            cancelDownload(d);
+        }
+    }
+
+    private static boolean removeWaiters(Download d, Object owner) {
+        return d.waiters.removeIf(w -> w.owner == owner);
+    }
 
-        startDownloadIfNeeded(fileId, 1);
+    // A running download stays until TDLib reports the cancellation
+    private void dropLocked(Download d) {
+        if (d.active) {
+            d.cancelled = true;
+            return;
+        }
+        downloads.remove(d.fileId);
+        queue.remove(d);
     }
 
-    private void startDownloadIfNeeded(int fileId, int priority) {
-        if (inFlight.putIfAbsent(fileId, true) != null) return;
+    private void cancelDownload(Download d) {
+        cancelledCount.incrementAndGet();
+        if (!d.active) return;
+
+        AccountSession session = AccountManager.getInstance().getSession(accountId);
+        if (session != null) {
+            session.send(new TdApi.CancelDownloadFile(d.fileId, false), null);
+        }
+    }
 
-        AccountSession session = AccountManager.getInstance().getSession(currentAccountId);
+    // --------------------
+    // Scheduling
+    // --------------------
+
+    private void enqueue(int fileId, int priority, Waiter waiter) {
+        boolean resend = false;
+        List<Download> toStart;
+        synchronized (lock) {
+            Download d = downloads.get(fileId);
+            if (d == null) {
+                d = new Download(fileId, priority, nextSeq++);
+                downloads.put(fileId, d);
+                queue.add(d);
+            } else if (priority > d.priority) {
+                if (d.cancelled) {
+                    // Used once it is queued again
+                    d.priority = priority;
+                } else {
+                    resend = setPriority(d, priority);
+                }
+            }
+
+            d.waiters.add(waiter);
+            if (priority >= PRIORITY_VISIBLE && d.visibleSince == 0) {
+                d.visibleSince = SystemClock.elapsedRealtimeNanos();
+            }
+            toStart = pollStartable();
+        }
+
+        if (resend) sendPriority(fileId, priority);
+        startAll(toStart);
+    }
+
+    /*
+     * Returns true if the download is running and TDLib has to be told.
+     */
+    private boolean setPriority(Download d, int priority) {
+        if (d.active) {
+            d.priority = priority;
+            return true;
+        }
+        queue.remove(d);
+        d.priority = priority;
+        d.seq = nextSeq++;
+        queue.add(d);
+        return false;
+    }
+
+    private List<Download> pollStartable() {
+        List<Download> result = null;
+        while (activeCount < MAX_ACTIVE_DOWNLOADS) {
+            Download next = queue.peek();
+            if (next == null) break;
+
+            boolean background = next.priority < PRIORITY_VISIBLE;
+            if (background && backgroundCount >= MAX_BACKGROUND_DOWNLOADS) break;
+
+            queue.poll();
+            next.active = true;
+            next.background = background;
+            next.startPriority = next.priority;
+            activeCount++;
+            if (background) backgroundCount++;
+
+            if (result == null) result = new ArrayList<>();
+            result.add(next);
+        }
+        return result != null ? result : Collections.emptyList();
+    }
+
+    private void startAll(List<Download> toStart) {
+        for (Download d : toStart) {
+            start(d);
+        }
+    }
+
+    private void start(Download d) {
+        AccountSession session = AccountManager.getInstance().getSession(accountId);
 
         if (session == null) {
-            Logger.LOGD("TdMediaRepository", "No active session for accountId: " + currentAccountId);
-            finish(fileId, null);
+            Logger.LOGD(TAG, "No session for accountId: " + accountId);
+            mainHandler.post(() -> finish(d.fileId, null));
             return;
         }
 
-        TdApi.DownloadFile request = new TdApi.DownloadFile(fileId, priority, 0, 0, true);
+        synchronized (lock) {
+            if (subscribedSession != session) {
+                unsubscribeLocked();
+                session.subscribe(fileUpdates, TdApi.UpdateFile.CONSTRUCTOR);
+                subscribedSession = session;
+            }
+        }
 
-        session.send(request, new Client.ResultHandler() {
-            @Override
-            public void onResult(TdApi.Object object) {
-                String path = null;
+        // Returns the file right away, the rest arrives as UpdateFile
+        TdApi.DownloadFile request = new TdApi.DownloadFile(d.fileId, d.startPriority, 0, 0, false);
 
-                if (object instanceof TdApi.File) {
-                    TdApi.File file = (TdApi.File) object;
-                    if (file.local != null && file.local.isDownloadingCompleted) {
-                        path = file.local.path;
-                    }
-                } else if (object instanceof TdApi.Error) {
-                    Logger.LOGD("TdMediaRepository", "Download error: " + ((TdApi.Error) object).message);
-                }
+        session.send(request, object -> {
+            if (object instanceof TdApi.File file) {
+                onFile(file, true);
+                return;
+            }
+            if (object instanceof TdApi.Error error) {
+                Logger.LOGD(TAG, "Download error: " + error.message);
+            }
+            mainHandler.post(() -> finish(d.fileId, null));
+        });
+    }
+
+    /*
+     * State of a running download, from the DownloadFile response or an
+     * UpdateFile. Updates sent before the response may predate the request
+     * and are skipped.
+     */
+    private void onFile(TdApi.File file, boolean response) {
+        if (file == null || file.local == null) return;
+
+        Download d;
+        synchronized (lock) {
+            d = downloads.get(file.id);
+            if (d == null || !d.active) return;
+            if (response) {
+                d.started = true;
+            } else if (!d.started) {
+                return;
+            }
+        }
+
+        TdApi.LocalFile local = file.local;
+        if (local.isDownloadingCompleted && !TextUtils.isEmpty(local.path)) {
+            String path = local.path;
+            remember(file, path);
+            index(file);
+            mainHandler.post(() -> finish(file.id, path));
+            return;
+        }
+        if (!local.isDownloadingActive) {
+            // Cancelled or failed
+            mainHandler.post(() -> finish(file.id, null));
+            return;
+        }
+
+        publishProgress(d, file);
+    }
+
+    /*
+     * Runs on the TDLib thread, which delivers one file's states in order.
+     */
+    private void publishProgress(Download d, TdApi.File file) {
+        boolean observed = false;
+        for (Waiter waiter : d.waiters) {
+            if (waiter.onProgress != null) {
+                observed = true;
+                break;
+            }
+        }
+        if (!observed) return;
 
-                final String finalPath = path;
-                mainHandler.post(() -> finish(fileId, finalPath));
+        long downloaded = file.local.downloadedPrefixSize;
+        long expected = file.size != 0 ? file.size : file.expectedSize;
+
+        String partialPath = null;
+        long step = Math.max(MIN_PARTIAL_PREFIX_SIZE, expected / PARTIAL_STEPS);
+        if (downloaded >= MIN_PARTIAL_PREFIX_SIZE
+                && downloaded - d.partialPrefixSize >= step
+                && !TextUtils.isEmpty(file.local.path)) {
+            d.partialPrefixSize = downloaded;
+            partialPath = file.local.path;
+        }
+
+        final String finalPartialPath = partialPath;
+        mainHandler.post(() -> {
+            if (d.finished) return;
+            for (Waiter waiter : d.waiters) {
+                if (waiter.onProgress != null) {
+                    waiter.onProgress.onProgress(d.fileId, downloaded, expected, finalPartialPath);
+                }
             }
         });
     }
 
+    /*
+     * A second DownloadFile with the same range only changes the priority
+     * of the running download.
+     */
+    private void sendPriority(int fileId, int priority) {
+        AccountSession session = AccountManager.getInstance().getSession(accountId);
+        if (session == null) return;
+        session.send(new TdApi.DownloadFile(fileId, priority, 0, 0, false), null);
+    }
+
     private void finish(int fileId, @Nullable String path) {
+        Download d;
+        List<Download> toStart;
+        boolean restart;
+        synchronized (lock) {
+            d = downloads.remove(fileId);
+            if (d == null) return;
+
+            if (d.active) {
+                activeCount--;
+                if (d.background) backgroundCount--;
+            } else {
+                queue.remove(d);
+            }
+
+            restart = d.cancelled && TextUtils.isEmpty(path) && !d.waiters.isEmpty();
+            if (restart) {
+                // Someone asked for the file again after it was cancelled
+                d.active = false;
+                d.started = false;
+                d.cancelled = false;
+                d.partialPrefixSize = 0;
+                d.seq = nextSeq++;
+                downloads.put(fileId, d);
+                queue.add(d);
+            }
+            toStart = pollStartable();
+            if (activeCount == 0 && toStart.isEmpty()) {
+                unsubscribeLocked();
+            }
+        }
+        if (restart) {
+            startAll(toStart);
+            return;
+        }
+        d.finished = true;
+
         if (!TextUtils.isEmpty(path)) {
-            pathCache.put(fileId, path);
+            if (d.visibleSince != 0) {
+                recordFirstPixel(SystemClock.elapsedRealtimeNanos() - d.visibleSince);
+            }
+        }
+
+        deliver(d, path);
+        startAll(toStart);
+    }
+
+    private void unsubscribeLocked() {
+        if (subscribedSession == null) return;
+        subscribedSession.unsubscribe(fileUpdates);
+        subscribedSession = null;
+    }
+
+    private static void deliver(Download d, @Nullable String path) {
+        for (Waiter waiter : d.waiters) {
+            if (waiter.onReady != null) waiter.onReady.accept(path);
+        }
+    }
+
+    // --------------------
+    // Path index
+    // --------------------
+
+    /*
+     * Runs on the database executor. Restored paths are only published by
+     * remote unique id and only once their files are checked, so a file id
+     * TDLib reassigned never maps to another file's path.
+     */
+    private void loadIndex() {
+        MediaPathDao dao = AppManager.getInstance().getAppDatabase().mediaPathDao();
+        dao.trim(accountId, MAX_INDEXED_PATHS);
+
+        List<MediaPathEntity> rows = dao.getRecent(accountId, MAX_CACHED_PATHS);
+        ArrayList<String> stale = new ArrayList<>();
+        // Oldest first, so the most recent paths end up most recently used
+        for (int i = rows.size() - 1; i >= 0; --i) {
+            MediaPathEntity row = rows.get(i);
+            File file = new File(row.path);
+            if (!file.isFile() || (row.size != 0 && file.length() != row.size)) {
+                stale.add(row.remoteUniqueId);
+                continue;
+            }
+            if (uniquePaths.get(row.remoteUniqueId) == null) {
+                uniquePaths.put(row.remoteUniqueId, row.path);
+            }
         }
+        deleteIndexed(dao, stale);
 
-        inFlight.remove(fileId);
+        Logger.LOGD(TAG, "Account " + accountId + ": restored " + (rows.size() - stale.size())
+                + " media paths, dropped " + stale.size());
+    }
+
+    /*
+     * Drops cached and indexed paths whose files are gone, e.g. after TDLib
+     * deleted them to free space. Runs on the database executor.
+     */
+    public void revalidatePaths() {
+        AppManager.getInstance().getExecutorDb().execute(() -> {
+            for (Map.Entry<Long, String> entry : pathCache.snapshot().entrySet()) {
+                long key = entry.getKey();
+                if ((int) (key >> 32) != accountId) continue;
+                if (new File(entry.getValue()).isFile()) continue;
+
+                if (entry.getValue().equals(pathCache.get(key))) {
+                    pathCache.remove(key);
+                }
+            }
+
+            ArrayList<String> stale = new ArrayList<>();
+            for (Map.Entry<String, String> entry : uniquePaths.snapshot().entrySet()) {
+                if (new File(entry.getValue()).isFile()) continue;
 
-        List<Consumer<String>> waitingCallbacks = callbacks.remove(fileId);
-        if (waitingCallbacks != null) {
-            for (Consumer<String> callback : waitingCallbacks) {
-                callback.accept(path);
+                stale.add(entry.getKey());
+                if (entry.getValue().equals(uniquePaths.get(entry.getKey()))) {
+                    uniquePaths.remove(entry.getKey());
+                }
+            }
+
+            deleteIndexed(AppManager.getInstance().getAppDatabase().mediaPathDao(), stale);
+            if (!stale.isEmpty()) {
+                Logger.LOGD(TAG, "Account " + accountId + ": dropped " + stale.size() + " deleted media paths");
             }
+        });
+    }
+
+    // Chunked to stay below SQLite's bound variable limit
+    private void deleteIndexed(MediaPathDao dao, List<String> uniqueIds) {
+        for (int from = 0; from < uniqueIds.size(); from += MAX_DELETE_CHUNK) {
+            dao.deleteFiles(accountId, uniqueIds.subList(from, Math.min(uniqueIds.size(), from + MAX_DELETE_CHUNK)));
+        }
+    }
+
+    /*
+     * Queues the finished file for the path index, writes are batched into
+     * one transaction on the database executor.
+     */
+    private void index(TdApi.File file) {
+        // Files without a remote copy could not be matched after a restart
+        String uniqueId = uniqueId(file);
+        if (uniqueId.isEmpty()) return;
+
+        pendingIndex.add(new MediaPathEntity(accountId, uniqueId, file.local.path,
+                file.local.downloadedSize, System.currentTimeMillis()));
+
+        if (indexFlushScheduled.compareAndSet(false, true)) {
+            AppManager.getInstance().getExecutorDb().execute(this::flushIndex);
+        }
+    }
+
+    private void flushIndex() {
+        indexFlushScheduled.set(false);
+
+        ArrayList<MediaPathEntity> batch = new ArrayList<>();
+        MediaPathEntity row;
+        while ((row = pendingIndex.poll()) != null) {
+            batch.add(row);
+        }
+        if (batch.isEmpty() || !repositories.containsKey(accountId)) return;
+
+        AppManager.getInstance().getAppDatabase().mediaPathDao().insertAll(batch);
+    }
+
+    // --------------------
+    // Stats
+    // --------------------
+
+    private void recordFirstPixel(long nanos) {
+        long count = firstPixelCount.incrementAndGet();
+        totalFirstPixelNanos.addAndGet(nanos);
+        if (nanos > maxFirstPixelNanos) maxFirstPixelNanos = nanos;
+
+        if (count % STATS_LOG_INTERVAL == 0) {
+            Logger.LOGD(TAG, "Account " + accountId + ": queued " + getQueuedCount()
+                    + ", running " + getActiveCount()
+                    + ", cancelled " + cancelledCount.get()
+                    + ", first pixel avg " + getAverageFirstPixelMillis()
+                    + " ms max " + getMaxFirstPixelMillis() + " ms");
+        }
+    }
+
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    public int getActiveCount() {
+        synchronized (lock) {
+            return activeCount;
+        }
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /*
+     * Time from a file first being requested as visible until its path was
+     * handed out, over all downloaded files that were on screen.
+     */
+    public long getAverageFirstPixelMillis() {
+        long count = firstPixelCount.get();
+        return count == 0 ? 0 : totalFirstPixelNanos.get() / count / 1_000_000;
+    }
+
+    public long getMaxFirstPixelMillis() {
+        return maxFirstPixelNanos / 1_000_000;
+    }
+
+    private static final class Download {
+        final int fileId;
+        // Changed under lock, iterated on the main thread
+        final CopyOnWriteArrayList<Waiter> waiters = new CopyOnWriteArrayList<>();
+        int priority;
+        long seq;
+        boolean active;
+        boolean background;
+        int startPriority;
+        // DownloadFile was answered, so UpdateFile reflects this download
+        boolean started;
+        // Prefix size when the partial file was last handed out, TDLib thread only
+        long partialPrefixSize;
+        // Set on the main thread once callbacks got their result
+        boolean finished;
+        // Running but cancelled, waiters attached since then restart it once TDLib stops it
+        boolean cancelled;
+        // When the file was first requested as visible, 0 if it never was
+        long visibleSince;
+
+        Download(int fileId, int priority, long seq) {
+            this.fileId = fileId;
+            this.priority = priority;
+            this.seq = seq;
+        }
+    }
+
+    private static final class Waiter {
+        @Nullable final Object owner;
+        @Nullable final Consumer<String> onReady;
+        @Nullable final ProgressListener onProgress;
+
+        Waiter(@Nullable Object owner, @Nullable Consumer<String> onReady, @Nullable ProgressListener onProgress) {
+            this.owner = owner;
+            this.onReady = onReady;
+            this.onProgress = onProgress;
         }
     }
-}
\ No newline at end of file
+}
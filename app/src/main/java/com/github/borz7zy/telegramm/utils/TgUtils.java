@@ -4,17 +4,13 @@ import com.github.borz7zy.telegramm.App;
 import com.github.borz7zy.telegramm.R;
 
 import org.drinkless.tdlib.TdApi;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 public class TgUtils {
 
     public static float density = 1;
 
     public static String formatTime(int date) {
-        return new SimpleDateFormat("HH:mm", Locale.getDefault())
-                .format(new Date(date * 1000L));
+        return TimeFormatter.formatTime(date);
     }
 
     public static String getMessageText(TdApi.Message message) { // TODO: implement data class, String -> MessageData(text, MediaPreviewBitmap)
@@ -0,0 +1,182 @@
+package com.github.borz7zy.telegramm.utils;
+
+import com.github.borz7zy.telegramm.App;
+import com.github.borz7zy.telegramm.R;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Shared formatter for message and dialog timestamps.
+ * Formatters are created once per locale, and formatted "HH:mm" strings
+ * are memoised per minute, so repeated timestamps of a page or a chat list
+ * are served from the cache without allocating.
+ * The cache is dropped when the default locale or time zone changes.
+ */
+public final class TimeFormatter {
+    private static final int MINUTE_CACHE_SIZE = 512; // power of two
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    // Ranges of formatDialogDate()
+    static final int BUCKET_TODAY = 0;
+    static final int BUCKET_YESTERDAY = 1;
+    static final int BUCKET_WEEK = 2;
+    static final int BUCKET_YEAR = 3;
+    static final int BUCKET_OLDER = 4;
+
+    private static final ConcurrentHashMap<Locale, Formats> formatsByLocale = new ConcurrentHashMap<>();
+
+    private static volatile State state;
+
+    private TimeFormatter(){}
+
+    /*
+     * "HH:mm" in the default locale and time zone.
+     */
+    public static String formatTime(int unixSeconds) {
+        State s = currentState();
+        long minute = Math.floorDiv(unixSeconds, 60);
+        int slot = (int) (minute & (MINUTE_CACHE_SIZE - 1));
+
+        MinuteEntry entry = s.minutes[slot];
+        if (entry != null && entry.minute == minute) {
+            return entry.text;
+        }
+
+        String text = s.formats.format(s.formats.time, unixSeconds * 1000L, s.timeZone);
+        s.minutes[slot] = new MinuteEntry(minute, text);
+        return text;
+    }
+
+    /*
+     * Relative date for the dialog list: time for today, "Yesterday",
+     * weekday within the last week, day and month within the current year,
+     * full date otherwise.
+     */
+    public static String formatDialogDate(int unixSeconds) {
+        long ms = unixSeconds * 1000L;
+        State s = currentState();
+        long startOfToday = s.startOfToday();
+
+        switch (dialogDateBucket(ms, startOfToday, s.startOfYear)) {
+            case BUCKET_TODAY:
+                return formatTime(unixSeconds);
+            case BUCKET_YESTERDAY:
+                return App.getApplication().getString(R.string.yesterday);
+            case BUCKET_WEEK:
+                return s.formats.format(s.formats.weekday, ms, s.timeZone);
+            case BUCKET_YEAR:
+                return s.formats.format(s.formats.dayMonth, ms, s.timeZone);
+            default:
+                return s.formats.format(s.formats.fullDate, ms, s.timeZone);
+        }
+    }
+
+    static int dialogDateBucket(long ms, long startOfToday, long startOfYear) {
+        if (ms >= startOfToday) return BUCKET_TODAY;
+        if (ms >= startOfToday - DAY_MS) return BUCKET_YESTERDAY;
+        if (ms >= startOfToday - 6 * DAY_MS) return BUCKET_WEEK;
+        if (ms >= startOfYear) return BUCKET_YEAR;
+        return BUCKET_OLDER;
+    }
+
+    // --------------------
+    // Cache state
+    // --------------------
+
+    private static State currentState() {
+        Locale locale = Locale.getDefault();
+        TimeZone timeZone = TimeZone.getDefault();
+
+        State s = state;
+        if (s == null || !s.locale.equals(locale) || !s.timeZoneId.equals(timeZone.getID())) {
+            s = new State(locale, timeZone);
+            state = s;
+        }
+        return s;
+    }
+
+    private static final class MinuteEntry {
+        final long minute;
+        final String text;
+
+        MinuteEntry(long minute, String text) {
+            this.minute = minute;
+            this.text = text;
+        }
+    }
+
+    private static final class State {
+        final Locale locale;
+        final String timeZoneId;
+        final TimeZone timeZone;
+        final Formats formats;
+        // Racy writes are fine: entries are immutable and a lost write is only a miss
+        final MinuteEntry[] minutes = new MinuteEntry[MINUTE_CACHE_SIZE];
+
+        volatile long todayStart;
+        volatile long todayEnd;
+        long startOfYear;
+
+        State(Locale locale, TimeZone timeZone) {
+            this.locale = locale;
+            this.timeZone = timeZone;
+            this.timeZoneId = timeZone.getID();
+            this.formats = formatsByLocale.computeIfAbsent(locale, Formats::new);
+        }
+
+        long startOfToday() {
+            long now = System.currentTimeMillis();
+            if (now < todayStart || now >= todayEnd) {
+                synchronized (this) {
+                    Calendar calendar = Calendar.getInstance(timeZone, locale);
+                    calendar.setTimeInMillis(now);
+                    calendar.set(Calendar.HOUR_OF_DAY, 0);
+                    calendar.set(Calendar.MINUTE, 0);
+                    calendar.set(Calendar.SECOND, 0);
+                    calendar.set(Calendar.MILLISECOND, 0);
+                    long start = calendar.getTimeInMillis();
+
+                    calendar.add(Calendar.DAY_OF_YEAR, 1);
+                    long end = calendar.getTimeInMillis();
+
+                    calendar.setTimeInMillis(start);
+                    calendar.set(Calendar.DAY_OF_YEAR, 1);
+                    startOfYear = calendar.getTimeInMillis();
+
+                    todayEnd = end;
+                    todayStart = start;
+                }
+            }
+            return todayStart;
+        }
+    }
+
+    /*
+     * SimpleDateFormat is not thread-safe, every use is synchronized on the instance.
+     */
+    private static final class Formats {
+        final SimpleDateFormat time;
+        final SimpleDateFormat weekday;
+        final SimpleDateFormat dayMonth;
+        final SimpleDateFormat fullDate;
+        private final Date date = new Date();
+
+        Formats(Locale locale) {
+            time = new SimpleDateFormat("HH:mm", locale);
+            weekday = new SimpleDateFormat("EEE", locale);
+            dayMonth = new SimpleDateFormat("d MMM", locale);
+            fullDate = new SimpleDateFormat("dd.MM.yy", locale);
+        }
+
+        synchronized String format(SimpleDateFormat format, long ms, TimeZone timeZone) {
+            format.setTimeZone(timeZone);
+            date.setTime(ms);
+            return format.format(date);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.borz7zy.telegramm.ui.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.github.borz7zy.telegramm.ui.model.MessageItem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class MessageStoreTest {
+
+    private static MessageItem item(long id) {
+        return item(id, "");
+    }
+
+    private static MessageItem item(long id, String text) {
+        return new MessageItem(id, 1, false, "", null, 0, new UiContent.Text(text));
+    }
+
+    private static List<Long> ids(List<MessageItem> items) {
+        ArrayList<Long> ids = new ArrayList<>(items.size());
+        for (MessageItem item : items) ids.add(item.id);
+        return ids;
+    }
+
+    private static List<Long> range(long from, long to) {
+        ArrayList<Long> ids = new ArrayList<>();
+        for (long id = from; id <= to; ++id) ids.add(id);
+        return ids;
+    }
+
+    @Test
+    public void keepsItemsOrderedAcrossChunks() {
+        MessageStore store = new MessageStore();
+        List<Long> shuffled = range(1, 1000);
+        Collections.shuffle(shuffled, new Random(1));
+        for (long id : shuffled) store.put(item(id));
+
+        assertEquals(1000, store.size());
+        assertEquals(range(1, 1000), ids(store.snapshot()));
+        assertEquals(1, store.firstId());
+        assertEquals(1000, store.lastId());
+    }
+
+    @Test
+    public void putReplacesTheSameId() {
+        MessageStore store = new MessageStore();
+        store.put(item(5, "old"));
+        MessageItem updated = item(5, "new");
+        store.put(updated);
+
+        assertEquals(1, store.size());
+        assertSame(updated, store.get(5));
+    }
+
+    @Test
+    public void snapshotIsNotChangedByLaterWrites() {
+        MessageStore store = new MessageStore();
+        for (long id = 1; id <= 200; ++id) store.put(item(id));
+        MessageItem original = store.get(100);
+
+        List<MessageItem> snapshot = store.snapshot();
+        store.put(item(100, "edited"));
+        store.put(item(201));
+        store.remove(1);
+        store.trimAround(150, 10, 10);
+
+        assertEquals(200, snapshot.size());
+        assertEquals(range(1, 200), ids(snapshot));
+        assertSame(original, snapshot.get(99));
+    }
+
+    @Test
+    public void rangeSnapshotIsInclusive() {
+        MessageStore store = new MessageStore();
+        for (long id = 10; id <= 1000; id += 10) store.put(item(id));
+
+        assertEquals(List.of(100L, 110L, 120L), ids(store.snapshot(100, 120)));
+        assertEquals(List.of(100L, 110L), ids(store.snapshot(95, 115)));
+        assertEquals(List.of(990L, 1000L), ids(store.snapshot(990, Long.MAX_VALUE)));
+        assertEquals(List.of(10L), ids(store.snapshot(Long.MIN_VALUE, 10)));
+        assertTrue(store.snapshot(101, 109).isEmpty());
+        assertTrue(store.snapshot(120, 100).isEmpty());
+        assertTrue(store.snapshot(1001, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void removeAcrossChunks() {
+        MessageStore store = new MessageStore();
+        for (long id = 1; id <= 500; ++id) store.put(item(id));
+        for (long id = 1; id <= 500; id += 2) {
+            assertEquals(id, store.remove(id).id);
+        }
+
+        assertNull(store.remove(1));
+        assertNull(store.get(3));
+        assertEquals(250, store.size());
+        ArrayList<Long> even = new ArrayList<>();
+        for (long id = 2; id <= 500; id += 2) even.add(id);
+        assertEquals(even, ids(store.snapshot()));
+    }
+
+    @Test
+    public void trimAroundKeepsTheCenter() {
+        MessageStore store = new MessageStore();
+        for (long id = 1; id <= 1000; ++id) store.put(item(id));
+
+        int evicted = store.trimAround(500, 100, 100);
+
+        assertEquals(1000 - store.size(), evicted);
+        assertTrue(store.size() >= 201);
+        assertTrue(store.firstId() <= 400);
+        assertTrue(store.lastId() >= 600);
+        assertEquals(range(store.firstId(), store.lastId()), ids(store.snapshot()));
+    }
+
+    @Test
+    public void matchesTreeMapUnderRandomOperations() {
+        MessageStore store = new MessageStore();
+        TreeMap<Long, MessageItem> expected = new TreeMap<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 20_000; ++i) {
+            long id = random.nextInt(3000) + 1;
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(id), store.remove(id));
+            } else {
+                MessageItem item = item(id, String.valueOf(i));
+                expected.put(id, item);
+                store.put(item);
+            }
+
+            if (i % 500 == 0) {
+                long from = random.nextInt(3000);
+                long to = from + random.nextInt(500);
+                assertEquals(new ArrayList<>(expected.subMap(from, true, to, true).values()),
+                        store.snapshot(from, to));
+            }
+        }
+        assertEquals(new ArrayList<>(expected.values()), store.snapshot());
+    }
+}
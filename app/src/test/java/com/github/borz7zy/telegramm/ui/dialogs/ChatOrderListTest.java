@@ -0,0 +1,221 @@
+package com.github.borz7zy.telegramm.ui.dialogs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.github.borz7zy.telegramm.ui.model.DialogItem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+public class ChatOrderListTest {
+
+    private static DialogItem dialog(long chatId, long order, boolean pinned) {
+        return new DialogItem(chatId, order, pinned, "chat " + chatId, "", "", 0, false, 0, null, false);
+    }
+
+    private static List<Long> chatIds(ChatOrderList list) {
+        ArrayList<Long> ids = new ArrayList<>();
+        for (int i = 0; i < list.size(); ++i) ids.add(list.get(i).chatId);
+        return ids;
+    }
+
+    /*
+     * Applies the reported changes to a plain list, which has to end up in
+     * the same order as the tree.
+     */
+    private static final class Mirror implements ListUpdateCallback {
+        final ArrayList<Long> ids = new ArrayList<>();
+        int changed;
+
+        Mirror(ChatOrderList list) {
+            ids.addAll(chatIds(list));
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            // The inserted chat is only known to the tree, resolved by the caller
+            for (int i = 0; i < count; ++i) ids.add(position, null);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            for (int i = 0; i < count; ++i) ids.remove(position);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            ids.add(toPosition, ids.remove(fromPosition));
+        }
+
+        @Override
+        public void onChanged(int position, int count, @Nullable Object payload) {
+            changed += count;
+        }
+
+        void resolve(ChatOrderList list) {
+            for (int i = 0; i < ids.size(); ++i) {
+                if (ids.get(i) == null) ids.set(i, list.get(i).chatId);
+            }
+        }
+    }
+
+    @Test
+    public void pinnedFirstThenByDescendingOrder() {
+        ChatOrderList list = new ChatOrderList();
+        list.insert(dialog(1, 100, false));
+        list.insert(dialog(2, 300, false));
+        list.insert(dialog(3, 50, true));
+        list.insert(dialog(4, 200, false));
+        list.insert(dialog(5, 60, true));
+        // Same order, the larger chat id goes first
+        list.insert(dialog(6, 200, false));
+
+        assertEquals(List.of(5L, 3L, 2L, 6L, 4L, 1L), chatIds(list));
+        assertEquals(List.of(5L, 3L), list.getPinnedIds());
+    }
+
+    @Test
+    public void rankMatchesSortedListUnderRandomOperations() {
+        ChatOrderList list = new ChatOrderList();
+        HashMap<Long, DialogItem> expected = new HashMap<>();
+        Random random = new Random(3);
+        Comparator<DialogItem> order = list::compare;
+
+        for (int i = 0; i < 5000; ++i) {
+            long chatId = random.nextInt(400) + 1;
+            if (expected.containsKey(chatId) && random.nextBoolean()) {
+                int index = list.indexOf(chatId);
+                assertEquals(index, list.remove(chatId));
+                expected.remove(chatId);
+            } else {
+                DialogItem item = dialog(chatId, random.nextInt(1000), random.nextInt(10) == 0);
+                list.update(chatId, item, null);
+                expected.put(chatId, item);
+            }
+        }
+
+        ArrayList<DialogItem> sorted = new ArrayList<>(expected.values());
+        sorted.sort(order);
+        assertEquals(sorted.size(), list.size());
+        for (int i = 0; i < sorted.size(); ++i) {
+            assertSame(sorted.get(i), list.get(i));
+            assertEquals(i, list.indexOf(sorted.get(i).chatId));
+        }
+    }
+
+    @Test
+    public void updateReportsMovesTheAdapterCanReplay() {
+        ChatOrderList list = new ChatOrderList();
+        for (long chatId = 1; chatId <= 50; ++chatId) {
+            list.insert(dialog(chatId, chatId * 10, false));
+        }
+
+        Random random = new Random(5);
+        Mirror mirror = new Mirror(list);
+        for (int i = 0; i < 1000; ++i) {
+            long chatId = random.nextInt(60) + 1;
+            DialogItem item = random.nextInt(8) == 0
+                    ? null
+                    : dialog(chatId, random.nextInt(1000), random.nextInt(6) == 0);
+            list.update(chatId, item, mirror);
+            mirror.resolve(list);
+        }
+        assertEquals(chatIds(list), mirror.ids);
+    }
+
+    @Test
+    public void replaceInPlaceOnlyWhenTheSortKeyIsKept() {
+        ChatOrderList list = new ChatOrderList();
+        list.insert(dialog(1, 100, false));
+        list.insert(dialog(2, 200, false));
+
+        DialogItem renamed = dialog(1, 100, false);
+        renamed.name = "renamed";
+        assertEquals(1, list.replaceInPlace(renamed));
+        assertSame(renamed, list.find(1));
+
+        assertEquals(-1, list.replaceInPlace(dialog(1, 300, false)));
+        assertEquals(-1, list.replaceInPlace(dialog(3, 100, false)));
+    }
+
+    @Test
+    public void localPinnedOrderOverridesChatOrder() {
+        ChatOrderList list = new ChatOrderList();
+        list.insert(dialog(1, 300, true));
+        list.insert(dialog(2, 200, true));
+        list.insert(dialog(3, 100, true));
+        list.insert(dialog(4, 900, false));
+
+        list.setPinnedOrder(List.of(3L, 1L));
+        // Pinned chats missing from the local order follow the listed ones
+        assertEquals(List.of(3L, 1L, 2L, 4L), chatIds(list));
+        assertEquals(0, list.indexOf(3));
+
+        // A pinned chat added later sorts by the same rules
+        list.insert(dialog(5, 1000, true));
+        assertEquals(List.of(3L, 1L, 5L, 2L, 4L), chatIds(list));
+    }
+
+    @Test
+    public void clearingThePinnedOrderGoesBackToChatOrder() {
+        ChatOrderList list = new ChatOrderList();
+        list.insert(dialog(1, 300, true));
+        list.insert(dialog(2, 200, true));
+        list.insert(dialog(3, 100, false));
+        list.setPinnedOrder(List.of(2L, 1L));
+
+        Mirror mirror = new Mirror(list);
+        list.clearPinnedOrder(mirror);
+
+        assertEquals(List.of(1L, 2L, 3L), chatIds(list));
+        assertEquals(2, mirror.changed);
+    }
+
+    @Test
+    public void clearingAConfirmedPinnedOrderReportsNothing() {
+        ChatOrderList list = new ChatOrderList();
+        list.insert(dialog(1, 300, true));
+        list.insert(dialog(2, 200, true));
+        list.setPinnedOrder(List.of(2L, 1L));
+
+        // The server applied the same order
+        list.update(2, dialog(2, 400, true), null);
+
+        Mirror mirror = new Mirror(list);
+        list.clearPinnedOrder(mirror);
+
+        assertEquals(List.of(2L, 1L), chatIds(list));
+        assertEquals(0, mirror.changed);
+    }
+
+    @Test
+    public void unknownChats() {
+        ChatOrderList list = new ChatOrderList();
+        list.insert(dialog(1, 100, false));
+
+        assertEquals(-1, list.indexOf(2));
+        assertEquals(-1, list.remove(2));
+        assertEquals(1, list.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void insertingTheSameChatTwiceFails() {
+        ChatOrderList list = new ChatOrderList();
+        list.insert(dialog(1, 100, false));
+        list.insert(dialog(1, 200, false));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutOfRange() {
+        new ChatOrderList().get(0);
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.borz7zy.telegramm.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/*
+ * Durations are kept for the whole process, so every test uses its own
+ * phase names.
+ */
+public class StartupTraceTest {
+
+    @Test
+    public void endRecordsTheStartedPhase() {
+        StartupTrace.begin("recorded");
+        assertFalse(StartupTrace.getDurations().containsKey("recorded"));
+
+        StartupTrace.end("recorded");
+        Long duration = StartupTrace.getDurations().get("recorded");
+        assertTrue(duration != null && duration >= 0);
+    }
+
+    @Test
+    public void endWithoutBeginIsIgnored() {
+        StartupTrace.end("neverStarted");
+        assertFalse(StartupTrace.getDurations().containsKey("neverStarted"));
+    }
+
+    @Test
+    public void secondEndIsIgnored() {
+        StartupTrace.begin("endedTwice");
+        StartupTrace.end("endedTwice");
+        int size = StartupTrace.getDurations().size();
+
+        StartupTrace.end("endedTwice");
+        assertEquals(size, StartupTrace.getDurations().size());
+    }
+
+    @Test
+    public void phasesKeepTheOrderTheyEnded() {
+        StartupTrace.begin("outer");
+        StartupTrace.begin("inner");
+        StartupTrace.end("inner");
+        StartupTrace.end("outer");
+
+        ArrayList<String> phases = new ArrayList<>(StartupTrace.getDurations().keySet());
+        assertTrue(phases.indexOf("inner") < phases.indexOf("outer"));
+
+        String described = StartupTrace.describe();
+        assertTrue(described.startsWith("Startup phases (ms):"));
+        assertTrue(described.indexOf(" inner=") < described.indexOf(" outer="));
+    }
+
+    @Test
+    public void durationsAreACopy() {
+        Map<String, Long> durations = StartupTrace.getDurations();
+        durations.put("copyOnly", 1L);
+        assertFalse(StartupTrace.getDurations().containsKey("copyOnly"));
+    }
+}
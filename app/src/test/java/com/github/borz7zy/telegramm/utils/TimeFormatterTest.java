@@ -0,0 +1,89 @@
+package com.github.borz7zy.telegramm.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+public class TimeFormatterTest {
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    // 2024-03-15 00:00 UTC
+    private static final long TODAY = 1710460800000L;
+    // 2024-01-01 00:00 UTC
+    private static final long YEAR = 1704067200000L;
+
+    private Locale savedLocale;
+    private TimeZone savedTimeZone;
+
+    @Before
+    public void setUp() {
+        savedLocale = Locale.getDefault();
+        savedTimeZone = TimeZone.getDefault();
+        Locale.setDefault(Locale.US);
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(savedLocale);
+        TimeZone.setDefault(savedTimeZone);
+    }
+
+    @Test
+    public void formatsHoursAndMinutes() {
+        assertEquals("00:00", TimeFormatter.formatTime(0));
+        assertEquals("00:00", TimeFormatter.formatTime(59));
+        assertEquals("00:01", TimeFormatter.formatTime(60));
+        assertEquals("23:59", TimeFormatter.formatTime(24 * 60 * 60 - 1));
+    }
+
+    @Test
+    public void minutesSharingACacheSlot() {
+        // 512 minutes apart, so both map to the same cache slot
+        int first = 10 * 60;
+        int second = first + 512 * 60;
+        assertEquals("00:10", TimeFormatter.formatTime(first));
+        assertEquals("08:42", TimeFormatter.formatTime(second));
+        assertEquals("00:10", TimeFormatter.formatTime(first));
+    }
+
+    @Test
+    public void timeZoneChangeDropsTheCache() {
+        assertEquals("00:00", TimeFormatter.formatTime(0));
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT+03:00"));
+        assertEquals("03:00", TimeFormatter.formatTime(0));
+    }
+
+    @Test
+    public void dialogDateBucketBoundaries() {
+        assertEquals(TimeFormatter.BUCKET_TODAY, TimeFormatter.dialogDateBucket(TODAY + DAY_MS - 1, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_TODAY, TimeFormatter.dialogDateBucket(TODAY, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_YESTERDAY, TimeFormatter.dialogDateBucket(TODAY - 1, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_YESTERDAY, TimeFormatter.dialogDateBucket(TODAY - DAY_MS, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_WEEK, TimeFormatter.dialogDateBucket(TODAY - DAY_MS - 1, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_WEEK, TimeFormatter.dialogDateBucket(TODAY - 6 * DAY_MS, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_YEAR, TimeFormatter.dialogDateBucket(TODAY - 6 * DAY_MS - 1, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_YEAR, TimeFormatter.dialogDateBucket(YEAR, TODAY, YEAR));
+        assertEquals(TimeFormatter.BUCKET_OLDER, TimeFormatter.dialogDateBucket(YEAR - 1, TODAY, YEAR));
+    }
+
+    @Test
+    public void weekReachesIntoThePreviousYear() {
+        // 2024-01-03, the last six days include 2023
+        long today = YEAR + 2 * DAY_MS;
+        assertEquals(TimeFormatter.BUCKET_WEEK, TimeFormatter.dialogDateBucket(YEAR - DAY_MS, today, YEAR));
+        assertEquals(TimeFormatter.BUCKET_OLDER, TimeFormatter.dialogDateBucket(today - 6 * DAY_MS - 1, today, YEAR));
+    }
+
+    @Test
+    public void formatsDialogDates() {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        assertEquals(TimeFormatter.formatTime(now), TimeFormatter.formatDialogDate(now));
+        // 2001-09-09
+        assertEquals("09.09.01", TimeFormatter.formatDialogDate(1_000_000_000));
+    }
+}
@@ -7,6 +7,9 @@
 package org.drinkless.tdlib;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -150,6 +153,118 @@ public final class Client {
         return client;
     }
 
+    /**
+     * Enables sharded dispatch of incoming results and updates. When enabled, the receiver thread only drains
+     * the native queue and hands every event to one of threadCount ordered executors chosen by client identifier,
+     * so events of a single client are still handled in order, while different clients progress in parallel.
+     * Must be called before the first Client is created.
+     *
+     * @param threadCount Number of dispatch threads. Pass 0 to handle all events on the receiver thread (default).
+     * @throws IllegalArgumentException if threadCount is negative.
+     * @throws IllegalStateException    if the receiver thread has already been started.
+     */
+    public static void setDispatchThreadCount(int threadCount) {
+        if (threadCount < 0) {
+            throw new IllegalArgumentException("threadCount must be non-negative: " + threadCount);
+        }
+        synchronized (responseReceiver) {
+            if (responseReceiver.isRun) {
+                throw new IllegalStateException("Dispatch mode must be configured before the first Client is created");
+            }
+            eventDispatcher = threadCount == 0 ? null : new EventDispatcher(threadCount);
+        }
+    }
+
+    /**
+     * Returns dispatch counters of this client.
+     *
+     * @return statistics of events received for this client.
+     */
+    public DispatchStatistics getDispatchStatistics() {
+        return dispatchStatistics;
+    }
+
+    /**
+     * Per-client counters of event queue depth and handler latency.
+     */
+    public static final class DispatchStatistics {
+        private final AtomicInteger queueDepth = new AtomicInteger();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        private final AtomicLong handledCount = new AtomicLong();
+        private final AtomicLong totalHandlerNanos = new AtomicLong();
+        private final AtomicLong maxHandlerNanos = new AtomicLong();
+
+        DispatchStatistics() {
+        }
+
+        void onEventQueued() {
+            int depth = queueDepth.incrementAndGet();
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        void onEventDequeued() {
+            queueDepth.decrementAndGet();
+        }
+
+        void onEventHandled(long handlerNanos) {
+            handledCount.incrementAndGet();
+            totalHandlerNanos.addAndGet(handlerNanos);
+            maxHandlerNanos.accumulateAndGet(handlerNanos, Math::max);
+        }
+
+        /**
+         * @return number of events waiting in the dispatch queue. Always 0 if sharded dispatch is disabled.
+         */
+        public int getQueueDepth() {
+            return queueDepth.get();
+        }
+
+        /**
+         * @return the largest observed number of events waiting in the dispatch queue.
+         */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        /**
+         * @return number of results and updates passed to handlers.
+         */
+        public long getHandledCount() {
+            return handledCount.get();
+        }
+
+        /**
+         * @return total time spent in handlers, in nanoseconds.
+         */
+        public long getTotalHandlerNanos() {
+            return totalHandlerNanos.get();
+        }
+
+        /**
+         * @return the longest single handler invocation, in nanoseconds.
+         */
+        public long getMaxHandlerNanos() {
+            return maxHandlerNanos.get();
+        }
+
+        /**
+         * @return average handler invocation time, in nanoseconds.
+         */
+        public long getAverageHandlerNanos() {
+            long count = handledCount.get();
+            return count == 0 ? 0 : totalHandlerNanos.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return "queueDepth=" + getQueueDepth()
+                    + ", maxQueueDepth=" + getMaxQueueDepth()
+                    + ", handled=" + getHandledCount()
+                    + ", avgHandlerNanos=" + getAverageHandlerNanos()
+                    + ", maxHandlerNanos=" + getMaxHandlerNanos();
+        }
+    }
+
     /**
      * Sets the handler for messages that are added to the internal TDLib log.
      * None of the TDLib methods can be called from the callback.
@@ -168,14 +283,19 @@ public final class Client {
         public void run() {
             while (true) {
                 int resultN = nativeClientReceive(clientIds, eventIds, events, 100000.0 /*seconds*/);
+                EventDispatcher dispatcher = eventDispatcher;
                 for (int i = 0; i < resultN; i++) {
-                    processResult(clientIds[i], eventIds[i], events[i]);
+                    if (dispatcher != null) {
+                        dispatcher.dispatch(clientIds[i], eventIds[i], events[i]);
+                    } else {
+                        processResult(clientIds[i], eventIds[i], events[i]);
+                    }
                     events[i] = null;
                 }
             }
         }
 
-        private void processResult(int clientId, long id, TdApi.Object object) {
+        void processResult(int clientId, long id, TdApi.Object object) {
             boolean isClosed = false;
             if (id == 0 && object instanceof TdApi.UpdateAuthorizationState) {
                 TdApi.AuthorizationState authorizationState = ((TdApi.UpdateAuthorizationState) object).authorizationState;
@@ -186,6 +306,7 @@ public final class Client {
 
             Handler handler = id == 0 ? updateHandlers.get(clientId) : handlers.remove(id);
             if (handler != null) {
+                long startTime = System.nanoTime();
                 try {
                     handler.resultHandler.onResult(object);
                 } catch (Throwable cause) {
@@ -200,11 +321,16 @@ public final class Client {
                         }
                     }
                 }
+                DispatchStatistics statistics = clientStatistics.get(clientId);
+                if (statistics != null) {
+                    statistics.onEventHandled(System.nanoTime() - startTime);
+                }
             }
 
             if (isClosed) {
                 updateHandlers.remove(clientId);           // there will be no more updates
                 defaultExceptionHandlers.remove(clientId); // ignore further exceptions
+                clientStatistics.remove(clientId);
                 clientCount.decrementAndGet();
             }
         }
@@ -215,15 +341,47 @@ public final class Client {
         private final TdApi.Object[] events = new TdApi.Object[MAX_EVENTS];
     }
 
+    private static final class EventDispatcher {
+        private final ExecutorService[] shards;
+
+        EventDispatcher(int threadCount) {
+            shards = new ExecutorService[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                final String threadName = "TDLib dispatch #" + (i + 1);
+                shards[i] = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        void dispatch(int clientId, long id, TdApi.Object object) {
+            DispatchStatistics statistics = clientStatistics.get(clientId);
+            if (statistics != null) {
+                statistics.onEventQueued();
+            }
+            shards[Math.floorMod(clientId, shards.length)].execute(() -> {
+                if (statistics != null) {
+                    statistics.onEventDequeued();
+                }
+                responseReceiver.processResult(clientId, id, object);
+            });
+        }
+    }
+
     private final int nativeClientId;
+    private final DispatchStatistics dispatchStatistics = new DispatchStatistics();
 
     private static final ConcurrentHashMap<Integer, ExceptionHandler> defaultExceptionHandlers = new ConcurrentHashMap<Integer, ExceptionHandler>();
     private static final ConcurrentHashMap<Integer, Handler> updateHandlers = new ConcurrentHashMap<Integer, Handler>();
-    private static final ConcurrentHashMap<Long, Handler> handlers = new ConcurrentHashMap<Long, Handler>();
+    private static final LongHandlerMap<Handler> handlers = new LongHandlerMap<Handler>();
+    private static final ConcurrentHashMap<Integer, DispatchStatistics> clientStatistics = new ConcurrentHashMap<Integer, DispatchStatistics>();
     private static final AtomicLong currentQueryId = new AtomicLong();
     private static final AtomicLong clientCount = new AtomicLong();
 
     private static final ResponseReceiver responseReceiver = new ResponseReceiver();
+    private static volatile EventDispatcher eventDispatcher;
 
     private static class Handler {
         final ResultHandler resultHandler;
@@ -238,6 +396,7 @@ public final class Client {
     private Client(ResultHandler updateHandler, ExceptionHandler updateExceptionHandler, ExceptionHandler defaultExceptionHandler) {
         clientCount.incrementAndGet();
         nativeClientId = createNativeClient();
+        clientStatistics.put(nativeClientId, dispatchStatistics);
         if (updateHandler != null) {
             updateHandlers.put(nativeClientId, new Handler(updateHandler, updateExceptionHandler));
         }
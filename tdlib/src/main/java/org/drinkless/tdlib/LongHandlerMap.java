@@ -0,0 +1,158 @@
+package org.drinkless.tdlib;
+
+/**
+ * Concurrent map from non-zero query identifiers to handlers.
+ * Keys are stored unboxed in open-addressing tables, split into independently locked segments,
+ * so put and remove don't allocate once a segment has grown to its working size.
+ *
+ * @param <V> Type of stored values.
+ */
+final class LongHandlerMap<V> {
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    LongHandlerMap() {
+        segments = (Segment<V>[]) new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<V>();
+        }
+    }
+
+    /**
+     * Associates value with the key.
+     *
+     * @param key   Non-zero key.
+     * @param value Non-null value.
+     * @return previous value associated with the key or null.
+     */
+    V put(long key, V value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Key must be non-zero");
+        }
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, slotHash(key), value);
+        }
+    }
+
+    /**
+     * Removes the value associated with the key.
+     *
+     * @param key Key to remove.
+     * @return removed value or null if there was no value for the key.
+     */
+    V remove(long key) {
+        if (key == 0) {
+            return null;
+        }
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key, slotHash(key));
+        }
+    }
+
+    /**
+     * @return number of stored values.
+     */
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private Segment<V> segmentFor(long key) {
+        return segments[(int) (hash(key) >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static long hash(long key) {
+        return key * HASH_MULTIPLIER;
+    }
+
+    private static int slotHash(long key) {
+        long hash = hash(key);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static final class Segment<V> {
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        private int mask = INITIAL_CAPACITY - 1;
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        V put(long key, int slotHash, V value) {
+            int i = slotHash & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    V old = (V) values[i];
+                    values[i] = value;
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        V remove(long key, int slotHash) {
+            int i = slotHash & mask;
+            while (keys[i] != key) {
+                if (keys[i] == 0) {
+                    return null;
+                }
+                i = (i + 1) & mask;
+            }
+            V old = (V) values[i];
+
+            // backward shift deletion keeps probe sequences intact without tombstones
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                long movedKey = keys[j];
+                if (movedKey == 0) {
+                    break;
+                }
+                int ideal = slotHash(movedKey) & mask;
+                boolean reachable = i <= j ? (i < ideal && ideal <= j) : (i < ideal || ideal <= j);
+                if (!reachable) {
+                    keys[i] = movedKey;
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+            size--;
+            return old;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void grow() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldKeys.length * 2];
+            mask = keys.length - 1;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], slotHash(oldKeys[i]), (V) oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.drinkless.tdlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class LongHandlerMapTest {
+
+    @Test
+    public void putReturnsPreviousValue() {
+        LongHandlerMap<String> map = new LongHandlerMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void removeMissingKey() {
+        LongHandlerMap<String> map = new LongHandlerMap<>();
+        map.put(1, "a");
+        assertNull(map.remove(2));
+        assertNull(map.remove(0));
+        assertEquals(1, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroKeyIsRejected() {
+        new LongHandlerMap<String>().put(0, "a");
+    }
+
+    @Test
+    public void negativeKeys() {
+        LongHandlerMap<String> map = new LongHandlerMap<>();
+        map.put(-1, "a");
+        map.put(Long.MIN_VALUE, "b");
+        assertEquals("a", map.remove(-1));
+        assertEquals("b", map.remove(Long.MIN_VALUE));
+    }
+
+    /*
+     * Sequential query ids fill long probe runs. Removing from the middle of
+     * a run must shift the rest back, or keys after the gap are lost.
+     */
+    @Test
+    public void removeKeepsProbeRunsReachable() {
+        LongHandlerMap<Long> map = new LongHandlerMap<>();
+        int count = 5000;
+        for (long key = 1; key <= count; ++key) {
+            map.put(key, key);
+        }
+
+        for (long key = 1; key <= count; key += 2) {
+            assertEquals(Long.valueOf(key), map.remove(key));
+        }
+        assertEquals(count / 2, map.size());
+
+        for (long key = 1; key <= count; ++key) {
+            if (key % 2 == 1) {
+                assertNull(map.remove(key));
+            } else {
+                // Replacing finds the stored entry instead of adding a second one
+                assertEquals(Long.valueOf(key), map.put(key, -key));
+            }
+        }
+        assertEquals(count / 2, map.size());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        LongHandlerMap<Long> map = new LongHandlerMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        List<Long> keys = new ArrayList<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; ++i) {
+            if (keys.isEmpty() || random.nextInt(3) != 0) {
+                // Small key range, so the same keys come back after removal
+                long key = random.nextInt(4096) + 1;
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(key, value));
+                keys.add(key);
+            } else {
+                long key = keys.remove(random.nextInt(keys.size()));
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            if (i % 1000 == 0) {
+                assertEquals(expected.size(), map.size());
+            }
+        }
+
+        List<Long> remaining = new ArrayList<>(expected.keySet());
+        Collections.shuffle(remaining, random);
+        for (long key : remaining) {
+            assertEquals(expected.get(key), map.remove(key));
+        }
+        assertEquals(0, map.size());
+    }
+}